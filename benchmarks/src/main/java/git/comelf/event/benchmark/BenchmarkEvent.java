@@ -0,0 +1,50 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.benchmark;
+
+import git.comelf.event.Event;
+
+/**
+ * Minimal event used by all benchmarks, so that event creation costs the
+ * same everywhere.
+ */
+public class BenchmarkEvent implements Event<BenchmarkEvent.Type> {
+
+    public enum Type {
+        FIRST, SECOND
+    }
+
+    private final Type type;
+    private final long timestamp;
+
+    public BenchmarkEvent(Type type, long timestamp) {
+        this.type = type;
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public Type getType() {
+        return type;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.benchmark;
+
+import git.comelf.event.Event;
+import git.comelf.event.EventHandler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handler counting the events it sees, so benchmarks can wait for the
+ * dispatcher to catch up with what they enqueued.
+ */
+public class CountingHandler implements EventHandler<Event> {
+
+    private final AtomicLong handled = new AtomicLong();
+
+    @Override
+    public void handle(Event event) {
+        handled.incrementAndGet();
+    }
+
+    public long getHandled() {
+        return handled.get();
+    }
+
+    /**
+     * Spin until at least {@code count} events have been handled.
+     */
+    public void awaitHandled(long count) {
+        while (handled.get() < count) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.benchmark;
+
+import git.comelf.conf.Configuration;
+import git.comelf.event.AsyncEventDispatcher;
+
+final class Dispatchers {
+
+    private Dispatchers() {
+    }
+
+    static Configuration configuration(String queueType, int capacity, String waitStrategy) {
+        Configuration conf = new Configuration();
+        conf.set(Configuration.DISPATCHER_EVENT_QUEUE_TYPE, queueType);
+        conf.setInt(Configuration.DISPATCHER_EVENT_QUEUE_CAPACITY, capacity);
+        conf.set(Configuration.DISPATCHER_WAIT_STRATEGY, waitStrategy);
+        return conf;
+    }
+
+    /**
+     * @return a started dispatcher that does not exit the JVM on handler
+     * errors, with handlers already registered by the caller
+     */
+    static AsyncEventDispatcher start(AsyncEventDispatcher dispatcher, Configuration conf) {
+        dispatcher.disableExitOnDispatchException();
+        dispatcher.init(conf);
+        dispatcher.start();
+        return dispatcher;
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.benchmark;
+
+import git.comelf.conf.Configuration;
+import git.comelf.event.AsyncEventDispatcher;
+import git.comelf.event.Event;
+import git.comelf.event.EventHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Enqueue throughput into a bounded queue drained by a counting handler.
+ * The producer benchmarks wait for the handler after every batch, so the
+ * queue never fills and the score is the steady-state rate; {@code saturated}
+ * never waits and measures enqueueing into a full queue, back-pressure
+ * included.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EnqueueBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({Configuration.DISPATCHER_EVENT_QUEUE_TYPE_LINKED,
+            Configuration.DISPATCHER_EVENT_QUEUE_TYPE_RING_BUFFER,
+            Configuration.DISPATCHER_EVENT_QUEUE_TYPE_PRIORITY})
+    public String queueType;
+
+    @Param({"65536"})
+    public int capacity;
+
+    @Param({Configuration.DISPATCHER_WAIT_STRATEGY_BLOCKING})
+    public String waitStrategy;
+
+    private AsyncEventDispatcher dispatcher;
+    private EventHandler<Event> eventHandler;
+    private CountingHandler handler;
+    private final AtomicLong sent = new AtomicLong();
+    private final BenchmarkEvent event = new BenchmarkEvent(BenchmarkEvent.Type.FIRST, 0);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dispatcher = new AsyncEventDispatcher("EnqueueBenchmark");
+        handler = new CountingHandler();
+        dispatcher.register(BenchmarkEvent.Type.class, handler);
+        Dispatchers.start(dispatcher,
+                Dispatchers.configuration(queueType, capacity, waitStrategy));
+        eventHandler = dispatcher.getEventHandler();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatcher.stop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(BATCH)
+    public void singleProducer() {
+        enqueueBatch();
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(BATCH)
+    public void multiProducer() {
+        enqueueBatch();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void saturated() {
+        eventHandler.handle(event);
+    }
+
+    private void enqueueBatch() {
+        for (int i = 0; i < BATCH; i++) {
+            eventHandler.handle(event);
+        }
+        // At most one batch per producer is outstanding, far below capacity.
+        handler.awaitHandled(sent.addAndGet(BATCH));
+    }
+}
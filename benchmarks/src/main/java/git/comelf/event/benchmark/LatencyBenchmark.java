@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.benchmark;
+
+import git.comelf.conf.Configuration;
+import git.comelf.event.AsyncEventDispatcher;
+import git.comelf.event.Event;
+import git.comelf.event.EventHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enqueue-to-handle latency of one event on an otherwise idle dispatcher:
+ * each operation enqueues an event and spins until its handler has run.
+ * Sample mode reports the percentiles.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LatencyBenchmark {
+
+    @Param({Configuration.DISPATCHER_EVENT_QUEUE_TYPE_LINKED,
+            Configuration.DISPATCHER_EVENT_QUEUE_TYPE_RING_BUFFER})
+    public String queueType;
+
+    @Param({Configuration.DISPATCHER_WAIT_STRATEGY_BLOCKING,
+            Configuration.DISPATCHER_WAIT_STRATEGY_YIELDING,
+            Configuration.DISPATCHER_WAIT_STRATEGY_BACKOFF_PARK})
+    public String waitStrategy;
+
+    private AsyncEventDispatcher dispatcher;
+    private EventHandler<Event> eventHandler;
+    private CountingHandler handler;
+    private final BenchmarkEvent event = new BenchmarkEvent(BenchmarkEvent.Type.FIRST, 0);
+    private long sent;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        handler = new CountingHandler();
+        dispatcher = new AsyncEventDispatcher("LatencyBenchmark");
+        dispatcher.register(BenchmarkEvent.Type.class, handler);
+        Dispatchers.start(dispatcher,
+                Dispatchers.configuration(queueType, 0, waitStrategy));
+        eventHandler = dispatcher.getEventHandler();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatcher.stop();
+    }
+
+    @Benchmark
+    public void roundTrip() {
+        eventHandler.handle(event);
+        handler.awaitHandled(++sent);
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.benchmark;
+
+import git.comelf.conf.Configuration;
+import git.comelf.event.AsyncEventDispatcher;
+import git.comelf.event.Event;
+import git.comelf.event.EventHandler;
+import git.comelf.event.metrics.HistogramEventTypeMetrics;
+import git.comelf.event.metrics.SimpleEventTypeMetrics;
+import git.comelf.event.metrics.StripedEventTypeMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatch throughput with each metrics implementation, against no metrics
+ * at all.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({"none", "simple", "striped", "histogram"})
+    public String metrics;
+
+    private AsyncEventDispatcher dispatcher;
+    private EventHandler<Event> eventHandler;
+    private CountingHandler handler;
+    private final BenchmarkEvent event = new BenchmarkEvent(BenchmarkEvent.Type.FIRST, 0);
+    private long sent;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        handler = new CountingHandler();
+        dispatcher = new AsyncEventDispatcher("MetricsBenchmark");
+        dispatcher.register(BenchmarkEvent.Type.class, handler);
+        switch (metrics) {
+            case "none":
+                break;
+            case "simple":
+                dispatcher.addMetrics(new SimpleEventTypeMetrics<>(BenchmarkEvent.Type.class),
+                        BenchmarkEvent.Type.class);
+                break;
+            case "striped":
+                dispatcher.addMetrics(new StripedEventTypeMetrics<>(BenchmarkEvent.Type.class),
+                        BenchmarkEvent.Type.class);
+                break;
+            case "histogram":
+                dispatcher.addMetrics(new HistogramEventTypeMetrics<>(BenchmarkEvent.Type.class),
+                        BenchmarkEvent.Type.class);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown metrics: " + metrics);
+        }
+        Dispatchers.start(dispatcher, new Configuration());
+        eventHandler = dispatcher.getEventHandler();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatcher.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void dispatch() {
+        for (int i = 0; i < BATCH; i++) {
+            eventHandler.handle(event);
+        }
+        sent += BATCH;
+        handler.awaitHandled(sent);
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.benchmark;
+
+import git.comelf.conf.Configuration;
+import git.comelf.event.AsyncEventDispatcher;
+import git.comelf.event.Event;
+import git.comelf.event.EventHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of events fanned out by {@code MultiListenerHandler} to
+ * several listeners doing a fixed amount of work each, with sequential and
+ * parallel fan-out.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MulticastBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({"1", "4", "16"})
+    public int listeners;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    @Param({"true", "false"})
+    public boolean ordered;
+
+    /**
+     * CPU work done by each listener per event, in JMH tokens.
+     */
+    @Param({"100"})
+    public long work;
+
+    private AsyncEventDispatcher dispatcher;
+    private EventHandler<Event> eventHandler;
+    private CountingHandler last;
+    private final BenchmarkEvent event = new BenchmarkEvent(BenchmarkEvent.Type.FIRST, 0);
+    private long sent;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dispatcher = new AsyncEventDispatcher("MulticastBenchmark");
+        for (int i = 0; i < listeners; i++) {
+            last = new CountingHandler() {
+                @Override
+                public void handle(Event event) {
+                    Blackhole.consumeCPU(work);
+                    super.handle(event);
+                }
+            };
+            dispatcher.register(BenchmarkEvent.Type.class, last);
+        }
+        Configuration conf = new Configuration();
+        conf.setBoolean(Configuration.DISPATCHER_MULTICAST_PARALLEL, parallel);
+        conf.setBoolean(Configuration.DISPATCHER_MULTICAST_ORDERED, ordered);
+        Dispatchers.start(dispatcher, conf);
+        eventHandler = dispatcher.getEventHandler();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatcher.stop();
+    }
+
+    /**
+     * Enqueue a batch and wait for the last listener to see all of it. The
+     * last listener runs on the event thread, so in unordered mode other
+     * listeners may still be finishing.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void fanOut() {
+        for (int i = 0; i < BATCH; i++) {
+            eventHandler.handle(event);
+        }
+        sent += BATCH;
+        last.awaitHandled(sent);
+    }
+}
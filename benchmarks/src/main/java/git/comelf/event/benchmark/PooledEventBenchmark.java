@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.benchmark;
+
+import git.comelf.conf.Configuration;
+import git.comelf.event.AsyncEventDispatcher;
+import git.comelf.event.Event;
+import git.comelf.event.EventHandler;
+import git.comelf.event.pool.EventPool;
+import git.comelf.event.pool.PooledEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enqueue-dispatch throughput with a new event per message against events
+ * claimed from an {@link EventPool}. Run with {@code -prof gc} to compare
+ * the allocation rate per operation, which the pooled variant keeps at zero
+ * on the ring buffer queue.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PooledEventBenchmark {
+
+    public static class PooledBenchmarkEvent extends PooledEvent<BenchmarkEvent.Type> {
+    }
+
+    @Param({Configuration.DISPATCHER_EVENT_QUEUE_TYPE_RING_BUFFER,
+            Configuration.DISPATCHER_EVENT_QUEUE_TYPE_LINKED})
+    public String queueType;
+
+    @Param({"1024"})
+    public int poolSize;
+
+    private AsyncEventDispatcher dispatcher;
+    private EventHandler<Event> eventHandler;
+    private EventPool<PooledBenchmarkEvent> pool;
+    private long sequence;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dispatcher = new AsyncEventDispatcher("PooledEventBenchmark");
+        dispatcher.register(BenchmarkEvent.Type.class, new CountingHandler());
+        Dispatchers.start(dispatcher, Dispatchers.configuration(queueType, 65536,
+                Configuration.DISPATCHER_WAIT_STRATEGY_BLOCKING));
+        eventHandler = dispatcher.getEventHandler();
+        pool = new EventPool<>(poolSize, PooledBenchmarkEvent::new);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatcher.stop();
+    }
+
+    @Benchmark
+    public void newEvent() {
+        eventHandler.handle(new BenchmarkEvent(BenchmarkEvent.Type.FIRST, sequence++));
+    }
+
+    @Benchmark
+    public void pooledEvent() throws InterruptedException {
+        PooledBenchmarkEvent event = pool.claim();
+        event.setType(BenchmarkEvent.Type.FIRST);
+        event.setTimestamp(sequence++);
+        eventHandler.handle(event);
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.benchmark;
+
+import git.comelf.conf.Configuration;
+import git.comelf.event.AsyncEventDispatcher;
+import git.comelf.event.Event;
+import git.comelf.event.EventHandler;
+import git.comelf.event.PrimitiveEventLane;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publish-handle throughput of events going through the ring buffer queue
+ * against the same fields published on a {@link PrimitiveEventLane}. Run
+ * with {@code -prof gc} to compare the allocation rate per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PrimitiveEventLaneBenchmark {
+
+    @Param({"65536"})
+    public int capacity;
+
+    private AsyncEventDispatcher dispatcher;
+    private EventHandler<Event> eventHandler;
+    private PrimitiveEventLane<BenchmarkEvent.Type> lane;
+    private volatile long laneSum;
+    private long sequence;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dispatcher = new AsyncEventDispatcher("PrimitiveEventLaneBenchmark");
+        dispatcher.register(BenchmarkEvent.Type.class, new CountingHandler());
+        lane = dispatcher.createPrimitiveLane(BenchmarkEvent.Type.class,
+                (type, key, value1, value2) -> laneSum = key + value1, capacity);
+        Dispatchers.start(dispatcher, Dispatchers.configuration(
+                Configuration.DISPATCHER_EVENT_QUEUE_TYPE_RING_BUFFER, capacity,
+                Configuration.DISPATCHER_WAIT_STRATEGY_BLOCKING));
+        eventHandler = dispatcher.getEventHandler();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatcher.stop();
+    }
+
+    @Benchmark
+    public void eventQueue() {
+        eventHandler.handle(new BenchmarkEvent(BenchmarkEvent.Type.FIRST, sequence++));
+    }
+
+    @Benchmark
+    public void primitiveLane() throws InterruptedException {
+        lane.publish(BenchmarkEvent.Type.FIRST, sequence, sequence++, 0);
+    }
+}
@@ -30,6 +30,104 @@ public class Configuration {
     public static final int DEFAULT_DISPATCHER_PRINT_EVENTS_INFO_THRESHOLD = 5000;
     public static final String DISPATCHER_DRAIN_EVENTS_TIMEOUT = "dispatcher.drain-events.timeout";
     public static final long DEFAULT_DISPATCHER_DRAIN_EVENTS_TIMEOUT = 300_000;
+    public static final String DISPATCHER_PARTITIONS = "dispatcher.partitions";
+    public static final int DEFAULT_DISPATCHER_PARTITIONS = 1;
+    public static final String DISPATCHER_EVENT_QUEUE_TYPE = "dispatcher.event-queue.type";
+    public static final String DISPATCHER_EVENT_QUEUE_TYPE_LINKED = "linked";
+    public static final String DISPATCHER_EVENT_QUEUE_TYPE_RING_BUFFER = "ring-buffer";
+    public static final String DISPATCHER_EVENT_QUEUE_TYPE_PRIORITY = "priority";
+    public static final String DISPATCHER_EVENT_QUEUE_TYPE_SPILLING = "spilling";
+    public static final String DEFAULT_DISPATCHER_EVENT_QUEUE_TYPE = DISPATCHER_EVENT_QUEUE_TYPE_LINKED;
+    // 0 leaves the capacity to the queue type: unbounded for "linked",
+    // RingBufferEventQueue.DEFAULT_CAPACITY for "ring-buffer". For "spilling"
+    // it is the number of events kept in memory, by default
+    // SpillingEventQueue.DEFAULT_MEMORY_CAPACITY.
+    public static final String DISPATCHER_EVENT_QUEUE_CAPACITY = "dispatcher.event-queue.capacity";
+    public static final int DEFAULT_DISPATCHER_EVENT_QUEUE_CAPACITY = 0;
+    // Comma separated lane weights of the "priority" queue type, one per lane,
+    // highest priority first.
+    public static final String DISPATCHER_PRIORITY_LANES_WEIGHTS = "dispatcher.priority-lanes.weights";
+    public static final String DEFAULT_DISPATCHER_PRIORITY_LANES_WEIGHTS = "1,1";
+    // "strict" or "weighted".
+    public static final String DISPATCHER_PRIORITY_LANES_POLICY = "dispatcher.priority-lanes.policy";
+    public static final String DEFAULT_DISPATCHER_PRIORITY_LANES_POLICY = "strict";
+    // Maximum number of events the dispatcher thread takes off the queue at
+    // once; 1 dispatches event by event.
+    public static final String DISPATCHER_DRAIN_BATCH_SIZE = "dispatcher.drain-batch.size";
+    public static final int DEFAULT_DISPATCHER_DRAIN_BATCH_SIZE = 1;
+    public static final String DISPATCHER_WAIT_STRATEGY = "dispatcher.wait-strategy";
+    public static final String DISPATCHER_WAIT_STRATEGY_BLOCKING = "blocking";
+    public static final String DISPATCHER_WAIT_STRATEGY_BUSY_SPIN = "busy-spin";
+    public static final String DISPATCHER_WAIT_STRATEGY_YIELDING = "yielding";
+    public static final String DISPATCHER_WAIT_STRATEGY_BACKOFF_PARK = "backoff-park";
+    public static final String DEFAULT_DISPATCHER_WAIT_STRATEGY = DISPATCHER_WAIT_STRATEGY_BLOCKING;
+    // One of the OverflowPolicy values, e.g. "block" or "drop-oldest".
+    public static final String DISPATCHER_OVERFLOW_POLICY = "dispatcher.overflow-policy";
+    public static final String DEFAULT_DISPATCHER_OVERFLOW_POLICY = "block";
+    public static final String DISPATCHER_OVERFLOW_BLOCK_TIMEOUT = "dispatcher.overflow-policy.block-timeout";
+    public static final long DEFAULT_DISPATCHER_OVERFLOW_BLOCK_TIMEOUT = 1000;
+    // Run the listeners of an event class with several handlers concurrently.
+    public static final String DISPATCHER_MULTICAST_PARALLEL = "dispatcher.multicast.parallel";
+    public static final boolean DEFAULT_DISPATCHER_MULTICAST_PARALLEL = false;
+    // Wait for all listeners of an event before dispatching the next one.
+    public static final String DISPATCHER_MULTICAST_ORDERED = "dispatcher.multicast.ordered";
+    public static final boolean DEFAULT_DISPATCHER_MULTICAST_ORDERED = true;
+    // Parallelism of the ForkJoinPool used when virtual threads are not
+    // available or not wanted; 0 means the number of available processors.
+    public static final String DISPATCHER_MULTICAST_PARALLELISM = "dispatcher.multicast.parallelism";
+    public static final int DEFAULT_DISPATCHER_MULTICAST_PARALLELISM = 0;
+    public static final String DISPATCHER_MULTICAST_VIRTUAL_THREADS = "dispatcher.multicast.virtual-threads";
+    public static final boolean DEFAULT_DISPATCHER_MULTICAST_VIRTUAL_THREADS = true;
+    // Record when events are enqueued, to report queue wait times to metrics
+    // and the age of the oldest pending event. Costs an envelope per event.
+    public static final String DISPATCHER_QUEUE_TIME_TRACKING = "dispatcher.queue-time-tracking.enabled";
+    public static final boolean DEFAULT_DISPATCHER_QUEUE_TIME_TRACKING = false;
+    // Parallelism of the pool unordered event classes are dispatched on; 0
+    // means the number of available processors.
+    public static final String DISPATCHER_UNORDERED_PARALLELISM = "dispatcher.unordered.parallelism";
+    public static final int DEFAULT_DISPATCHER_UNORDERED_PARALLELISM = 0;
+    // Run BLOCKING event classes on virtual threads when the JVM has them,
+    // otherwise on a pool of at most dispatcher.blocking.pool-size threads.
+    public static final String DISPATCHER_BLOCKING_VIRTUAL_THREADS = "dispatcher.blocking.virtual-threads";
+    public static final boolean DEFAULT_DISPATCHER_BLOCKING_VIRTUAL_THREADS = true;
+    public static final String DISPATCHER_BLOCKING_POOL_SIZE = "dispatcher.blocking.pool-size";
+    public static final int DEFAULT_DISPATCHER_BLOCKING_POOL_SIZE = 64;
+    // Number of dispatchers in a DispatcherGroup and points each of them gets
+    // on the consistent hash ring.
+    public static final String DISPATCHER_GROUP_SIZE = "dispatcher.group.size";
+    public static final int DEFAULT_DISPATCHER_GROUP_SIZE = 1;
+    public static final String DISPATCHER_GROUP_VIRTUAL_NODES = "dispatcher.group.virtual-nodes";
+    public static final int DEFAULT_DISPATCHER_GROUP_VIRTUAL_NODES = 64;
+    // Check every dispatcher.watchdog.interval milliseconds for event threads
+    // stuck in a handler for longer than the dispatch budget of the event
+    // class, dispatcher.watchdog.budget milliseconds unless set for the class.
+    // 0 disables the watchdog.
+    public static final String DISPATCHER_WATCHDOG_INTERVAL = "dispatcher.watchdog.interval";
+    public static final long DEFAULT_DISPATCHER_WATCHDOG_INTERVAL = 0;
+    public static final String DISPATCHER_WATCHDOG_BUDGET = "dispatcher.watchdog.budget";
+    public static final long DEFAULT_DISPATCHER_WATCHDOG_BUDGET = 10_000;
+    // Let the watchdog interrupt bulkhead handlers running past their budget.
+    public static final String DISPATCHER_WATCHDOG_INTERRUPT_ISOLATED =
+            "dispatcher.watchdog.interrupt-isolated";
+    public static final boolean DEFAULT_DISPATCHER_WATCHDOG_INTERRUPT_ISOLATED = false;
+    // Directory the "spilling" queue type writes batches of excess events to,
+    // java.io.tmpdir if not set, and the number of events per batch file.
+    public static final String DISPATCHER_SPILL_DIR = "dispatcher.spill.dir";
+    public static final String DISPATCHER_SPILL_BATCH_SIZE = "dispatcher.spill.batch-size";
+    public static final int DEFAULT_DISPATCHER_SPILL_BATCH_SIZE = 1024;
+    // Directory of the write-ahead event journal, journaling is off unless
+    // set. Unacknowledged events are replayed on start.
+    public static final String DISPATCHER_JOURNAL_DIR = "dispatcher.journal.dir";
+    public static final String DISPATCHER_JOURNAL_SEGMENT_SIZE = "dispatcher.journal.segment-size";
+    public static final int DEFAULT_DISPATCHER_JOURNAL_SEGMENT_SIZE = 64 * 1024 * 1024;
+    // Longest time appended events stay unflushed, in milliseconds, and
+    // whether producers wait for the flush of their events.
+    public static final String DISPATCHER_JOURNAL_FLUSH_INTERVAL = "dispatcher.journal.flush-interval";
+    public static final long DEFAULT_DISPATCHER_JOURNAL_FLUSH_INTERVAL = 10;
+    public static final String DISPATCHER_JOURNAL_SYNC = "dispatcher.journal.sync";
+    public static final boolean DEFAULT_DISPATCHER_JOURNAL_SYNC = false;
+    public static final String DISPATCHER_JOURNAL_CHECKPOINT_INTERVAL = "dispatcher.journal.checkpoint-interval";
+    public static final long DEFAULT_DISPATCHER_JOURNAL_CHECKPOINT_INTERVAL = 1000;
 
     private static final Logger LOG = LoggerFactory.getLogger(Configuration.class);
 
@@ -38,6 +136,15 @@ public class Configuration {
     public Configuration() {
     }
 
+    /**
+     * A new configuration with the same properties as the given one.
+     *
+     * @param other configuration to copy
+     */
+    public Configuration(Configuration other) {
+        getProps().putAll(other.getProps());
+    }
+
     protected synchronized Properties getProps() {
         if (properties == null) {
             properties = new Properties();
@@ -57,6 +164,10 @@ public class Configuration {
         set(name, Long.toString(value));
     }
 
+    public void setBoolean(String name, boolean value) {
+        set(name, Boolean.toString(value));
+    }
+
     public void set(String name, String value) {
         Objects.requireNonNull(name);
         Objects.requireNonNull(value);
@@ -75,6 +186,22 @@ public class Configuration {
         }
     }
 
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String valueString = getTrimmed(name);
+        if (null == valueString || valueString.isEmpty()) {
+            return defaultValue;
+        }
+        if (valueString.equalsIgnoreCase("true")) {
+            return true;
+        } else if (valueString.equalsIgnoreCase("false")) {
+            return false;
+        } else {
+            LOG.warn("Invalid value for boolean: " + valueString
+                    + ", choose default value: " + defaultValue + " for " + name);
+            return defaultValue;
+        }
+    }
+
     public long getLong(String name, long defaultValue) {
         String valueString = getTrimmed(name);
         if (valueString == null)
@@ -87,6 +214,31 @@ public class Configuration {
     }
 
 
+    /**
+     * Get the value of the <code>name</code> property as a set of comma-delimited
+     * <code>int</code> values.
+     * <p>
+     * If no such property exists, the default value is parsed instead; an
+     * empty value gives an empty array.
+     *
+     * @param name         property name
+     * @param defaultValue comma-delimited values used if the property is not set
+     * @return property value interpreted as an array of comma-delimited
+     * <code>int</code> values
+     */
+    public int[] getInts(String name, String defaultValue) {
+        String valueString = getTrimmed(name, defaultValue);
+        if (valueString.isEmpty()) {
+            return new int[0];
+        }
+        String[] strings = valueString.split(",");
+        int[] ints = new int[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            ints[i] = Integer.parseInt(strings[i].trim());
+        }
+        return ints;
+    }
+
     public String getTrimmed(String name) {
         String value = get(name);
         if (null == value) {
@@ -96,4 +248,9 @@ public class Configuration {
         }
     }
 
+    public String getTrimmed(String name, String defaultValue) {
+        String ret = getTrimmed(name);
+        return ret == null ? defaultValue : ret;
+    }
+
 }
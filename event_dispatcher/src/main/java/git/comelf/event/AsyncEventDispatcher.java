@@ -19,33 +19,147 @@
 package git.comelf.event;
 
 import git.comelf.conf.Configuration;
+import git.comelf.event.journal.EventJournal;
+import git.comelf.event.journal.EventSerializer;
 import git.comelf.event.metrics.EventTypeMetrics;
+import git.comelf.event.pool.PooledEvent;
+import git.comelf.event.queue.PriorityLaneEventQueue;
+import git.comelf.event.queue.RingBufferEventQueue;
+import git.comelf.event.queue.SpillingEventQueue;
 import git.comelf.event.service.AbstractService;
+import git.comelf.event.util.KeyedSerialExecutor;
 import git.comelf.event.util.TimeUtil;
+import git.comelf.event.util.VirtualThreads;
+import git.comelf.event.wait.BackoffParkWaitStrategy;
+import git.comelf.event.wait.BlockingWaitStrategy;
+import git.comelf.event.wait.BusySpinWaitStrategy;
+import git.comelf.event.wait.WaitStrategy;
+import git.comelf.event.wait.YieldingWaitStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MarkerFactory;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 public class AsyncEventDispatcher extends AbstractService implements Dispatcher {
 
     private final Logger LOG = LoggerFactory.getLogger(this.getClass());
 
-    private final BlockingQueue<Event> eventQueue;
+    private BlockingQueue<Event> eventQueue;
+    // Whether the event queue is left to the dispatcher, in which case it is
+    // created in serviceInit according to DISPATCHER_EVENT_QUEUE_TYPE.
+    private final boolean configuredQueue;
     private volatile int lastEventQueueSizeLogged = 0;
     private volatile int lastEventDetailsQueueSizeLogged = 0;
+    // When the queue details and the low capacity warning were last logged,
+    // each at most once per QUEUE_LOG_INTERVAL_NANOS.
+    private volatile long lastEventDetailsLogTime;
+    private volatile long lastLowCapacityLogTime;
+    private static final long QUEUE_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
 
     private int detailsInterval;
+    private int drainBatchSize = Configuration.DEFAULT_DISPATCHER_DRAIN_BATCH_SIZE;
+    private WaitStrategy waitStrategy;
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private long overflowBlockTimeout;
+    private EventKeyExtractor overflowKeyExtractor;
+    private RejectedEventHandler rejectedEventHandler;
+    private final Map<OverflowPolicy, LongAdder> overflowCounts;
     private boolean printTrigger = false;
+    // Whether events are queued in QueuedEvent envelopes with their
+    // enqueue time.
+    private boolean trackQueueTime = false;
+
+    // Write-ahead journal of queued events, null unless DISPATCHER_JOURNAL_DIR
+    // is set. Events are acknowledged once dispatched or discarded, or once
+    // handlers finishing them after returning are done.
+    private EventJournal journal;
+    private JournalAcks journalAcks;
+    // Serializer for the journal and the spilling queue.
+    private EventSerializer eventSerializer;
+
+    // Handler and metrics tables are immutable snapshots. Registration copies
+    // them under registrationLock and publishes the copy, so event threads
+    // look handlers up without locking while handlers come and go.
+    protected volatile Map<Class<? extends Enum>, EventHandler> eventDispatchers;
+
+    private volatile Map<Class<? extends Enum>, EventTypeMetrics> eventTypeMetricsMap;
+
+    private final Object registrationLock = new Object();
+
+    // Executor running the listeners of MultiListenerHandlers concurrently,
+    // null unless DISPATCHER_MULTICAST_PARALLEL is set.
+    private ExecutorService multicastExecutor;
+    private boolean ownMulticastExecutor;
+    private boolean orderedMulticast = true;
+    // Executors for event classes not dispatched on the event thread, each
+    // created once the first class needing it is registered and the
+    // dispatcher is inited.
+    private volatile ExecutorService unorderedExecutor;
+    private boolean ownUnorderedExecutor;
+    private volatile ExecutorService blockingExecutor;
+    private volatile KeyedSerialExecutor keyedBlockingExecutor;
+    private boolean ownBlockingExecutor;
+    private final Map<Class<? extends Enum>, DispatchMode> dispatchModes =
+            new ConcurrentHashMap<>();
+    private volatile boolean asyncDispatchEnabled = false;
+    // Work handed off by event threads that has not completed yet. The
+    // dispatcher is not drained until it is back to zero.
+    private final AtomicInteger asyncInFlight = new AtomicInteger();
+    // Batch handlers, flushed on stop, and the timer flushing their batches
+    // after the linger time, created with the first of them.
+    private final List<BatchHandlerAdapter> batchHandlers = new CopyOnWriteArrayList<>();
+    private volatile ScheduledExecutorService batchLingerExecutor;
+    // Bulkhead of each event class isolated from the others.
+    private final Map<Class<? extends Enum>, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+    // Primitive event lanes, each with a thread of its own once started.
+    private final List<PrimitiveEventLane<?>> primitiveLanes = new CopyOnWriteArrayList<>();
+    private boolean primitiveLanesStarted = false;
+
+    // Watchdog flagging dispatches that take longer than the budget of their
+    // event class, in nanoseconds. Event threads only publish what they
+    // dispatch while it is enabled.
+    private boolean watchdogEnabled = false;
+    private long watchdogInterval;
+    private long defaultDispatchBudget;
+    private boolean interruptIsolated;
+    private final Map<Class<? extends Enum>, Long> dispatchBudgets = new ConcurrentHashMap<>();
+    private ScheduledExecutorService watchdogExecutor;
+    private final LongAdder stuckDispatches = new LongAdder();
+
+    private final EventHandler<Event> handlerInstance = new GenericEventHandler();
 
-    protected final Map<Class<? extends Enum>, EventHandler> eventDispatchers;
+    private final EventCoalescing coalescing = new EventCoalescing(this);
 
-    private Map<Class<? extends Enum>, EventTypeMetrics> eventTypeMetricsMap;
+    // Queued events per event type, indexed by ordinal, so the queue
+    // composition can be reported without walking the queues.
+    private final ConcurrentHashMap<Class<? extends Enum>, LongAdder[]> pendingByType =
+            new ConcurrentHashMap<>();
+    private final LongAdder untypedPending = new LongAdder();
+
+    // Priority lane of each event class registered with a priority.
+    private final Map<Class<? extends Enum>, Integer> eventPriorities =
+            new ConcurrentHashMap<>();
 
     private boolean exitOnDispatchException = true;
 
@@ -55,6 +169,11 @@ public class AsyncEventDispatcher extends AbstractService implements Dispatcher
 
     private Thread eventHandlingThread;
 
+    // Queues and threads events are dispatched on. Holds a single partition
+    // backed by eventQueue unless DISPATCHER_PARTITIONS is greater than one.
+    private volatile Partition[] partitions;
+    private EventKeyExtractor partitionKeyExtractor = EventKeyExtractor.DECLARING_CLASS;
+
     // Configuration flag for enabling/disabling draining dispatcher's events on
     // stop functionality.
     private volatile boolean drainEventsOnStop = false;
@@ -74,15 +193,25 @@ public class AsyncEventDispatcher extends AbstractService implements Dispatcher
     private String dispatcherThreadName = "AsyncDispatcher event handler";
 
     public AsyncEventDispatcher() {
-        this(new LinkedBlockingQueue<Event>());
+        this(new LinkedBlockingQueue<Event>(), true);
     }
 
     public AsyncEventDispatcher(BlockingQueue<Event> eventQueue) {
+        this(eventQueue, false);
+    }
+
+    private AsyncEventDispatcher(BlockingQueue<Event> eventQueue,
+                                 boolean configuredQueue) {
         super("Dispatcher");
         this.eventQueue = eventQueue;
-        this.eventDispatchers = new HashMap<Class<? extends Enum>, EventHandler>();
-        this.eventTypeMetricsMap = new HashMap<Class<? extends Enum>,
-                EventTypeMetrics>();
+        this.configuredQueue = configuredQueue;
+        this.partitions = new Partition[]{new Partition(eventQueue)};
+        this.eventDispatchers = Collections.emptyMap();
+        this.eventTypeMetricsMap = Collections.emptyMap();
+        this.overflowCounts = new EnumMap<>(OverflowPolicy.class);
+        for (OverflowPolicy policy : OverflowPolicy.values()) {
+            overflowCounts.put(policy, new LongAdder());
+        }
     }
 
     /**
@@ -96,11 +225,19 @@ public class AsyncEventDispatcher extends AbstractService implements Dispatcher
     }
 
     Runnable createThread() {
+        return createThread(0);
+    }
+
+    Runnable createThread(final int index) {
+        final Partition partition = partitions[index];
+        // Reused for every batch taken off the queue, null when batching is off.
+        final List<Event> batch = drainBatchSize > 1
+                ? new ArrayList<Event>(drainBatchSize) : null;
         return new Runnable() {
             @Override
             public void run() {
                 while (!stopped && !Thread.currentThread().isInterrupted()) {
-                    drained = eventQueue.isEmpty();
+                    drained = isQueueDrained(partition);
                     // blockNewEvents is only set when dispatcher is draining to stop,
                     // adding this check is to avoid the overhead of acquiring the lock
                     // and calling notify every time in the normal run of the loop.
@@ -113,7 +250,7 @@ public class AsyncEventDispatcher extends AbstractService implements Dispatcher
                     }
                     Event event;
                     try {
-                        event = eventQueue.take();
+                        event = waitForEvent(partition);
                     } catch (InterruptedException ie) {
                         if (!stopped) {
                             LOG.warn("AsyncDispatcher thread interrupted", ie);
@@ -121,14 +258,11 @@ public class AsyncEventDispatcher extends AbstractService implements Dispatcher
                         return;
                     }
                     if (event != null) {
-                        if (eventTypeMetricsMap.
-                                get(event.getType().getDeclaringClass()) != null) {
-                            long startTime = TimeUtil.getTime();
-                            dispatch(event);
-                            eventTypeMetricsMap.get(event.getType().getDeclaringClass())
-                                    .increment(event.getType(), TimeUtil.diffFromNow(startTime));
+                        if (batch == null) {
+                            dispatchAndRecord(partition, event,
+                                    eventTypeMetricsMap.get(event.getType().getDeclaringClass()));
                         } else {
-                            dispatch(event);
+                            event = dispatchBatch(event, partition, batch);
                         }
                         if (printTrigger) {
                             //Log the latest dispatch event type
@@ -142,220 +276,1878 @@ public class AsyncEventDispatcher extends AbstractService implements Dispatcher
         };
     }
 
-    protected void serviceInit(Configuration conf) throws Exception {
-        super.serviceInit(conf);
-        this.detailsInterval = getConfig()
-                .getInt(Configuration.DISPATCHER_PRINT_EVENTS_INFO_THRESHOLD,
-                        Configuration.DEFAULT_DISPATCHER_PRINT_EVENTS_INFO_THRESHOLD);
+    /**
+     * Take the next event of the partition, waiting with the wait strategy if
+     * there is none. The partition is flagged as waiting meanwhile, see
+     * {@link #isEventThreadWaiting()}.
+     */
+    private Event waitForEvent(Partition partition) throws InterruptedException {
+        // Only flag the partition when it is about to wait, not for every event.
+        Event event = partition.queue.poll();
+        if (event != null) {
+            return event;
+        }
+        partition.waiting = true;
+        try {
+            return waitStrategy.waitFor(partition.queue);
+        } finally {
+            partition.waiting = false;
+        }
+    }
 
-        // Thread pool for async print event details,
-        // to prevent wasting too much time for RM.
-        printEventDetailsExecutor = new ThreadPoolExecutor(
-                1, 5, 10, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<>());
+    /**
+     * For event threads created by subclasses, which only have one partition.
+     */
+    Event waitForEvent() throws InterruptedException {
+        return waitForEvent(partitions[0]);
     }
 
-    protected void serviceStart() throws Exception {
-        //start all the components
-        super.serviceStart();
-        eventHandlingThread = new Thread(createThread());
-        eventHandlingThread.setName(dispatcherThreadName);
-        eventHandlingThread.start();
+    /**
+     * Dispatch the given event together with whatever else is queued, up to
+     * {@link Configuration#DISPATCHER_DRAIN_BATCH_SIZE} events in total.
+     *
+     * @return the last event dispatched
+     */
+    private Event dispatchBatch(Event first, Partition partition,
+                                List<Event> batch) {
+        batch.add(first);
+        partition.queue.drainTo(batch, drainBatchSize - 1);
+        Class<? extends Enum> metricsClass = null;
+        EventTypeMetrics metrics = null;
+        Event event = first;
+        int dispatched = 0;
+        try {
+            for (int n = batch.size(); dispatched < n && !stopped; ) {
+                event = batch.get(dispatched++);
+                // Batches are typically runs of the same event class, only
+                // look up the metrics again when the class changes.
+                Class<? extends Enum> type = event.getType().getDeclaringClass();
+                if (type != metricsClass) {
+                    metricsClass = type;
+                    metrics = eventTypeMetricsMap.get(type);
+                }
+                dispatchAndRecord(partition, event, metrics);
+            }
+        } finally {
+            if (dispatched < batch.size()) {
+                requeue(partition, batch, dispatched);
+            }
+            batch.clear();
+        }
+        return event;
     }
 
-    public void setDrainEventsOnStop() {
-        drainEventsOnStop = true;
+    /**
+     * Put the events of a batch left when stopping back in the queue, where
+     * they stay like any other event not dispatched before stop. Events the
+     * queue no longer has room for are discarded under the overflow policy.
+     */
+    private void requeue(Partition partition, List<Event> batch, int from) {
+        for (int i = from, n = batch.size(); i < n; i++) {
+            Event event = batch.get(i);
+            if (!partition.queue.offer(event)) {
+                rejectEvent(event, overflowPolicy);
+            }
+        }
     }
 
-    protected void serviceStop() throws Exception {
-        if (drainEventsOnStop) {
-            blockNewEvents = true;
-            LOG.info("AsyncDispatcher is draining to stop, ignoring any new events.");
-            long endTime = TimeUtil.getTime() +
-                    getConfig().getLong(Configuration.DISPATCHER_DRAIN_EVENTS_TIMEOUT, Configuration.DEFAULT_DISPATCHER_DRAIN_EVENTS_TIMEOUT);
+    private void dispatchAndRecord(Partition partition, Event event,
+                                   EventTypeMetrics metrics) {
+        if (!watchdogEnabled) {
+            dispatchAndRecord(event, metrics);
+            return;
+        }
+        // Captured up front: a pooled event is recycled, and may be reused,
+        // before this returns.
+        Enum type = event.getType();
+        partition.dispatchStart = TimeUtil.monotonicNowNanos();
+        partition.dispatchBudget = dispatchBudget(type.getDeclaringClass());
+        // Only this thread writes the sequence.
+        partition.dispatchSequence = partition.dispatchSequence + 1;
+        partition.dispatchingType = type;
+        try {
+            dispatchAndRecord(event, metrics);
+        } finally {
+            partition.dispatchingType = null;
+        }
+    }
 
-            synchronized (waitForDrained) {
-                while (!isDrained() && eventHandlingThread != null
-                        && eventHandlingThread.isAlive()
-                        && TimeUtil.getTime() < endTime) {
-                    waitForDrained.wait(100);
-                    LOG.info("Waiting for AsyncDispatcher to drain. Thread state is :" +
-                            eventHandlingThread.getState());
+    private void dispatchAndRecord(Event event, EventTypeMetrics metrics) {
+        pendingCounter(event).decrement();
+        long enqueueTime = -1;
+        long sequence = -1;
+        if (event instanceof QueuedEvent) {
+            QueuedEvent queued = (QueuedEvent) event;
+            enqueueTime = queued.enqueueTimeNanos;
+            sequence = queued.journalSequence;
+            event = queued.event;
+        }
+        if (coalescing.isEnabled()) {
+            Event latest = coalescing.takeCoalesced(event);
+            if (latest instanceof QueuedEvent) {
+                // The merged event was journaled after this one, and its
+                // record replaces this one's.
+                QueuedEvent superseding = (QueuedEvent) latest;
+                if (sequence >= 0) {
+                    journal.ack(sequence);
                 }
+                sequence = superseding.journalSequence;
+                latest = superseding.event;
             }
+            event = latest;
         }
-        stopped = true;
-        if (eventHandlingThread != null) {
-            eventHandlingThread.interrupt();
-            try {
-                eventHandlingThread.join();
-            } catch (InterruptedException ie) {
-                LOG.warn("Interrupted Exception while stopping", ie);
+        if (asyncDispatchEnabled && !bulkheads.isEmpty()) {
+            Bulkhead bulkhead = bulkheads.get(event.getType().getDeclaringClass());
+            if (bulkhead != null) {
+                dispatchIsolated(bulkhead, event, metrics, enqueueTime, sequence);
+                return;
             }
         }
-        printEventDetailsExecutor.shutdownNow();
-
-        // stop all the components
-        super.serviceStop();
+        DispatchMode mode = asyncDispatchEnabled
+                ? dispatchModes.get(event.getType().getDeclaringClass()) : null;
+        if (mode != null && mode != DispatchMode.ORDERED) {
+            dispatchAsync(mode, event, metrics, enqueueTime, sequence);
+        } else {
+            dispatchAndRecord(event, metrics, enqueueTime, sequence);
+        }
     }
 
-    protected void dispatch(Event event) {
-        //all events go thru this loop
-        LOG.debug("Dispatching the event {}.{}", event.getClass().getName(), event);
-
-        Class<? extends Enum> type = event.getType().getDeclaringClass();
-
+    /**
+     * Hand the event to the executor of its dispatch mode, or dispatch it
+     * right here if the executor does not take it.
+     */
+    private void dispatchAsync(DispatchMode mode, final Event event,
+                               final EventTypeMetrics metrics, final long enqueueTime,
+                               final long sequence) {
+        Runnable task = () -> {
+            try {
+                dispatchAndRecord(event, metrics, enqueueTime, sequence);
+            } finally {
+                asyncInFlight.decrementAndGet();
+            }
+        };
+        asyncInFlight.incrementAndGet();
         try {
-            EventHandler handler = eventDispatchers.get(type);
-            if (handler != null) {
-                handler.handle(event);
-            } else {
-                throw new Exception("No handler for registered for " + type);
+            switch (mode) {
+                case BLOCKING:
+                    blockingExecutor.execute(task);
+                    break;
+                case BLOCKING_KEYED:
+                    keyedBlockingExecutor.execute(partitionKeyExtractor.getKey(event), task);
+                    break;
+                case UNORDERED:
+                default:
+                    unorderedExecutor.execute(task);
+                    break;
             }
-        } catch (Throwable t) {
-            //TODO Maybe log the state of the queue
-            LOG.error(MarkerFactory.getMarker("FATAL"), "Error in dispatcher thread", t);
-            // If serviceStop is called, we should exit this thread gracefully.
-            if (exitOnDispatchException && stopped == false) {
-                stopped = true;
-                Thread shutDownThread = new Thread(createShutDownThread());
-                shutDownThread.setName("AsyncDispatcher ShutDown handler");
-                shutDownThread.start();
+        } catch (RejectedExecutionException e) {
+            asyncInFlight.decrementAndGet();
+            dispatchAndRecord(event, metrics, enqueueTime, sequence);
+        }
+    }
+
+    /**
+     * Hand the event to its bulkhead, rejecting it if the bulkhead is full.
+     */
+    private void dispatchIsolated(Bulkhead bulkhead, Event event, EventTypeMetrics metrics,
+                                  long enqueueTime, long sequence) {
+        Runnable task = new IsolatedDispatch(this, bulkhead, event, metrics, enqueueTime,
+                sequence >= 0 ? journalAcks.track(sequence) : null);
+        asyncInFlight.incrementAndGet();
+        if (!bulkhead.tryExecute(task)) {
+            asyncInFlight.decrementAndGet();
+            if (sequence >= 0) {
+                journal.ack(sequence);
             }
+            LOG.debug("{} is full, rejected {}", bulkhead.getName(), event);
+            notifyRejected(event, OverflowPolicy.REJECT);
+            recycle(event);
         }
     }
 
-    protected boolean isDrained() {
-        return drained;
+    private void dispatchAndRecord(Event event, EventTypeMetrics metrics, long enqueueTime,
+                                   long sequence) {
+        JournalAcks.Ack ack = sequence >= 0 ? journalAcks.track(sequence) : null;
+        JournalAcks.Ack outer = ack != null ? ack.begin() : null;
+        try {
+            dispatchAndRecord(event, metrics, enqueueTime);
+        } finally {
+            if (ack != null) {
+                ack.end(outer);
+            }
+            recycle(event);
+        }
     }
 
-    protected boolean isStopped() {
-        return stopped;
+    /**
+     * Count work handed off by an event thread, or its completion.
+     */
+    void addAsyncInFlight(int delta) {
+        asyncInFlight.addAndGet(delta);
     }
 
-    public int getEventQueueSize() {
-        return eventQueue.size();
+    /**
+     * Called by handlers that finish an event after returning, keeps the
+     * journal record of the event dispatched on this thread from being
+     * acknowledged until it is released.
+     *
+     * @return the record held, or null if the event is not journaled
+     */
+    JournalAcks.Ack holdJournalAck() {
+        return journalAcks == null ? null : journalAcks.hold();
     }
 
-    @Override
-    public EventHandler<Event> getEventHandler() {
-        return new GenericEventHandler();
+    /**
+     * Keep a pooled event from being recycled while something other than
+     * the event thread still uses it.
+     */
+    static void retain(Event event) {
+        if (event instanceof PooledEvent) {
+            ((PooledEvent) event).retain();
+        }
     }
 
-    public void addMetrics(EventTypeMetrics metrics, Class<? extends Enum> eventClass) {
-        eventTypeMetricsMap.put(eventClass, metrics);
+    /**
+     * Drop the dispatcher's reference to a pooled event, once it is
+     * dispatched or discarded.
+     */
+    static void recycle(Event event) {
+        if (event instanceof PooledEvent) {
+            ((PooledEvent) event).release();
+        }
     }
 
-    @Override
-    public void register(Class<? extends Enum> eventType, EventHandler handler) {
-        /* check to see if we have a listener registered */
-        EventHandler<Event> registeredHandler = (EventHandler<Event>) eventDispatchers.get(eventType);
-        LOG.info("Registering " + eventType + " for " + handler.getClass());
-        if (registeredHandler == null) {
-            eventDispatchers.put(eventType, handler);
-        } else if (!(registeredHandler instanceof MultiListenerHandler)) {
-            /* for multiple listeners of an event add the multiple listener handler */
-            MultiListenerHandler multiHandler = new MultiListenerHandler();
-            multiHandler.addHandler(registeredHandler);
-            multiHandler.addHandler(handler);
-            eventDispatchers.put(eventType, multiHandler);
+    private void dispatchAndRecord(Event event, EventTypeMetrics metrics, long enqueueTime) {
+        if (metrics != null) {
+            long startTime = TimeUtil.monotonicNowNanos();
+            dispatch(event);
+            metrics.record(event.getType(), TimeUtil.monotonicNowNanos() - startTime,
+                    enqueueTime < 0 ? -1 : startTime - enqueueTime);
         } else {
-            /* already a multilistener, just add to it */
-            MultiListenerHandler multiHandler = (MultiListenerHandler) registeredHandler;
-            multiHandler.addHandler(handler);
+            dispatch(event);
         }
     }
 
-    Runnable createShutDownThread() {
-        return () -> {
-            LOG.info("Exiting, bbye..");
-            System.exit(-1);
-        };
-    }
+    protected void serviceInit(Configuration conf) throws Exception {
+        super.serviceInit(conf);
+        this.detailsInterval = getConfig()
+                .getInt(Configuration.DISPATCHER_PRINT_EVENTS_INFO_THRESHOLD,
+                        Configuration.DEFAULT_DISPATCHER_PRINT_EVENTS_INFO_THRESHOLD);
 
-    class GenericEventHandler implements EventHandler<Event> {
-        private void printEventQueueDetails() {
-            Iterator<Event> iterator = eventQueue.iterator();
-            Map<Enum, Long> counterMap = new HashMap<>();
-            while (iterator.hasNext()) {
-                Enum eventType = iterator.next().getType();
-                if (!counterMap.containsKey(eventType)) {
-                    counterMap.put(eventType, 0L);
-                }
-                counterMap.put(eventType, counterMap.get(eventType) + 1);
+        this.drainBatchSize = getConfig().getInt(Configuration.DISPATCHER_DRAIN_BATCH_SIZE,
+                Configuration.DEFAULT_DISPATCHER_DRAIN_BATCH_SIZE);
+        if (drainBatchSize < 1) {
+            throw new IllegalArgumentException(Configuration.DISPATCHER_DRAIN_BATCH_SIZE
+                    + " should be at least 1, but was " + drainBatchSize);
+        }
+
+        this.overflowPolicy = OverflowPolicy.fromString(getConfig().getTrimmed(
+                Configuration.DISPATCHER_OVERFLOW_POLICY,
+                Configuration.DEFAULT_DISPATCHER_OVERFLOW_POLICY));
+        this.overflowBlockTimeout = getConfig().getLong(
+                Configuration.DISPATCHER_OVERFLOW_BLOCK_TIMEOUT,
+                Configuration.DEFAULT_DISPATCHER_OVERFLOW_BLOCK_TIMEOUT);
+        if (overflowPolicy == OverflowPolicy.COALESCE && overflowKeyExtractor == null) {
+            throw new IllegalArgumentException("Overflow policy " + overflowPolicy
+                    + " needs a key extractor, see setOverflowKeyExtractor()");
+        }
+
+        if (waitStrategy == null) {
+            waitStrategy = createWaitStrategy(getConfig());
+        }
+
+        this.trackQueueTime = getConfig().getBoolean(Configuration.DISPATCHER_QUEUE_TIME_TRACKING,
+                Configuration.DEFAULT_DISPATCHER_QUEUE_TIME_TRACKING);
+
+        this.watchdogInterval = getConfig().getLong(Configuration.DISPATCHER_WATCHDOG_INTERVAL,
+                Configuration.DEFAULT_DISPATCHER_WATCHDOG_INTERVAL);
+        this.watchdogEnabled = watchdogInterval > 0;
+        this.defaultDispatchBudget = TimeUnit.MILLISECONDS.toNanos(getConfig().getLong(
+                Configuration.DISPATCHER_WATCHDOG_BUDGET,
+                Configuration.DEFAULT_DISPATCHER_WATCHDOG_BUDGET));
+        this.interruptIsolated = getConfig().getBoolean(
+                Configuration.DISPATCHER_WATCHDOG_INTERRUPT_ISOLATED,
+                Configuration.DEFAULT_DISPATCHER_WATCHDOG_INTERRUPT_ISOLATED);
+
+        String journalDir = getConfig().getTrimmed(Configuration.DISPATCHER_JOURNAL_DIR);
+        if (journalDir != null && !journalDir.isEmpty()) {
+            if (eventSerializer == null) {
+                throw new IllegalArgumentException(Configuration.DISPATCHER_JOURNAL_DIR
+                        + " is set, but there is no serializer, see setEventSerializer()");
             }
-            for (Map.Entry<Enum, Long> entry : counterMap.entrySet()) {
-                long num = entry.getValue();
-                LOG.info("Event type: " + entry.getKey()
-                        + ", Event record counter: " + num);
+            journal = new EventJournal(new File(journalDir), eventSerializer,
+                    getConfig().getInt(Configuration.DISPATCHER_JOURNAL_SEGMENT_SIZE,
+                            Configuration.DEFAULT_DISPATCHER_JOURNAL_SEGMENT_SIZE),
+                    getConfig().getLong(Configuration.DISPATCHER_JOURNAL_FLUSH_INTERVAL,
+                            Configuration.DEFAULT_DISPATCHER_JOURNAL_FLUSH_INTERVAL),
+                    getConfig().getLong(Configuration.DISPATCHER_JOURNAL_CHECKPOINT_INTERVAL,
+                            Configuration.DEFAULT_DISPATCHER_JOURNAL_CHECKPOINT_INTERVAL),
+                    getConfig().getBoolean(Configuration.DISPATCHER_JOURNAL_SYNC,
+                            Configuration.DEFAULT_DISPATCHER_JOURNAL_SYNC));
+            journal.open();
+            journalAcks = new JournalAcks(journal);
+        }
+
+        if (getConfig().getBoolean(Configuration.DISPATCHER_MULTICAST_PARALLEL,
+                Configuration.DEFAULT_DISPATCHER_MULTICAST_PARALLEL)) {
+            orderedMulticast = getConfig().getBoolean(Configuration.DISPATCHER_MULTICAST_ORDERED,
+                    Configuration.DEFAULT_DISPATCHER_MULTICAST_ORDERED);
+            if (multicastExecutor == null) {
+                multicastExecutor = createMulticastExecutor(getConfig());
+                ownMulticastExecutor = true;
             }
         }
 
-        public void handle(Event event) {
-            if (blockNewEvents) {
-                return;
+        synchronized (registrationLock) {
+            for (DispatchMode mode : dispatchModes.values()) {
+                createAsyncExecutor(mode);
             }
-            drained = false;
+        }
 
-            /* all this method does is enqueue all the events onto the queue */
-            int qSize = eventQueue.size();
-            if (qSize != 0 && qSize % 1000 == 0 && lastEventQueueSizeLogged != qSize) {
-                lastEventQueueSizeLogged = qSize;
-                LOG.info("Size of event-queue is " + qSize);
+        if (configuredQueue) {
+            BlockingQueue<Event> queue = createEventQueue(getConfig());
+            // Keep anything handed to the dispatcher before it was initialized.
+            eventQueue.drainTo(queue);
+            eventQueue = queue;
+            partitions = new Partition[]{new Partition(eventQueue)};
+        }
+
+        int numPartitions = getConfig().getInt(Configuration.DISPATCHER_PARTITIONS,
+                Configuration.DEFAULT_DISPATCHER_PARTITIONS);
+        if (numPartitions < 1) {
+            throw new IllegalArgumentException(Configuration.DISPATCHER_PARTITIONS
+                    + " should be at least 1, but was " + numPartitions);
+        }
+        if (numPartitions > 1) {
+            Partition[] newPartitions = new Partition[numPartitions];
+            for (int i = 0; i < numPartitions; i++) {
+                newPartitions[i] = new Partition(createPartitionQueue(i));
             }
-            if (qSize != 0 && qSize % detailsInterval == 0 && lastEventDetailsQueueSizeLogged != qSize) {
-                lastEventDetailsQueueSizeLogged = qSize;
-                printEventDetailsExecutor.submit(this::printEventQueueDetails);
-                printTrigger = true;
+            partitions = newPartitions;
+        }
+        for (Map.Entry<Class<? extends Enum>, Integer> entry : eventPriorities.entrySet()) {
+            assignLane(entry.getKey(), entry.getValue());
+        }
+        for (Partition partition : partitions) {
+            if (partition.queue instanceof SpillingEventQueue) {
+                // Events lost with an unreadable batch stay in the journal, if
+                // any, and are replayed on the next start.
+                ((SpillingEventQueue) partition.queue).setLossListener((type, lost) -> {
+                    pendingCounter(type).add(-lost);
+                    drained = isQueueDrained(partition);
+                });
             }
-            int remCapacity = eventQueue.remainingCapacity();
-            if (remCapacity < 1000) {
-                LOG.warn("Very low remaining capacity in the event-queue: " + remCapacity);
+        }
+
+        if ((overflowPolicy == OverflowPolicy.DROP_OLDEST
+                || overflowPolicy == OverflowPolicy.COALESCE)
+                && eventQueue instanceof RingBufferEventQueue) {
+            throw new IllegalArgumentException("Overflow policy " + overflowPolicy
+                    + " removes queued events, which RingBufferEventQueue does not support");
+        }
+
+        // Thread pool for async print event details,
+        // to prevent wasting too much time for RM.
+        printEventDetailsExecutor = new ThreadPoolExecutor(
+                1, 5, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>());
+    }
+
+    protected void serviceStart() throws Exception {
+        //start all the components
+        super.serviceStart();
+        eventHandlingThread = new Thread(createThread());
+        eventHandlingThread.setName(partitions.length == 1
+                ? dispatcherThreadName : dispatcherThreadName + " #0");
+        partitions[0].thread = eventHandlingThread;
+        for (int i = 1; i < partitions.length; i++) {
+            Thread thread = new Thread(createThread(i));
+            thread.setName(dispatcherThreadName + " #" + i);
+            partitions[i].thread = thread;
+        }
+        for (Partition partition : partitions) {
+            partition.thread.start();
+        }
+        synchronized (registrationLock) {
+            for (PrimitiveEventLane<?> lane : primitiveLanes) {
+                startPrimitiveLane(lane);
             }
-            try {
-                eventQueue.put(event);
-            } catch (InterruptedException e) {
-                if (!stopped) {
-                    LOG.warn("AsyncDispatcher thread interrupted", e);
-                }
-                // Need to reset drained flag to true if event queue is empty,
-                // otherwise dispatcher will hang on stop.
-                drained = eventQueue.isEmpty();
-                throw new RuntimeException(e);
+            primitiveLanesStarted = true;
+        }
+        if (watchdogEnabled) {
+            watchdogExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, dispatcherThreadName + " watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+            watchdogExecutor.scheduleWithFixedDelay(this::checkStuckDispatches,
+                    watchdogInterval, watchdogInterval, TimeUnit.MILLISECONDS);
+        }
+        if (journal != null) {
+            long replayed = journal.replay(this::enqueueReplayed);
+            if (replayed > 0) {
+                LOG.info("Replayed " + replayed + " unacknowledged events from the journal");
             }
         }
     }
 
     /**
-     * Multiplexing an event. Sending it to different handlers that
-     * are interested in the event.
+     * Queue an event read back from the journal, bypassing overflow handling,
+     * as the event was accepted before. It is coalesced like a new event, so
+     * that an update replayed and sent again is dispatched once.
      */
-    static class MultiListenerHandler implements EventHandler<Event> {
-        List<EventHandler<Event>> listofHandlers;
+    private void enqueueReplayed(Event event, long sequence) {
+        if (coalescing.isEnabled() && coalescing.coalescePending(event, sequence)) {
+            return;
+        }
+        Partition partition = selectPartition(event);
+        pendingCounter(event).increment();
+        drained = false;
+        try {
+            partition.queue.put(new QueuedEvent(event,
+                    trackQueueTime ? TimeUtil.monotonicNowNanos() : -1, sequence));
+        } catch (InterruptedException e) {
+            countDequeued(event);
+            coalescing.forget(event, overflowPolicy);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
 
-        public MultiListenerHandler() {
-            listofHandlers = new ArrayList<EventHandler<Event>>();
+    /**
+     * Create the event queue configured by
+     * {@link Configuration#DISPATCHER_EVENT_QUEUE_TYPE} and
+     * {@link Configuration#DISPATCHER_EVENT_QUEUE_CAPACITY}. Only used when
+     * no queue was passed to the constructor.
+     *
+     * @param conf dispatcher configuration
+     * @return a new, empty event queue
+     */
+    protected BlockingQueue<Event> createEventQueue(Configuration conf) {
+        String type = conf.getTrimmed(Configuration.DISPATCHER_EVENT_QUEUE_TYPE,
+                Configuration.DEFAULT_DISPATCHER_EVENT_QUEUE_TYPE);
+        int capacity = conf.getInt(Configuration.DISPATCHER_EVENT_QUEUE_CAPACITY,
+                Configuration.DEFAULT_DISPATCHER_EVENT_QUEUE_CAPACITY);
+        switch (type) {
+            case Configuration.DISPATCHER_EVENT_QUEUE_TYPE_LINKED:
+                return capacity > 0 ? new LinkedBlockingQueue<Event>(capacity)
+                        : new LinkedBlockingQueue<Event>();
+            case Configuration.DISPATCHER_EVENT_QUEUE_TYPE_RING_BUFFER:
+                return new RingBufferEventQueue(capacity > 0 ? capacity
+                        : RingBufferEventQueue.DEFAULT_CAPACITY);
+            case Configuration.DISPATCHER_EVENT_QUEUE_TYPE_PRIORITY:
+                PriorityLaneEventQueue.Policy policy = PriorityLaneEventQueue.Policy.valueOf(
+                        conf.getTrimmed(Configuration.DISPATCHER_PRIORITY_LANES_POLICY,
+                                Configuration.DEFAULT_DISPATCHER_PRIORITY_LANES_POLICY).toUpperCase());
+                return new PriorityLaneEventQueue(policy,
+                        conf.getInts(Configuration.DISPATCHER_PRIORITY_LANES_WEIGHTS,
+                                Configuration.DEFAULT_DISPATCHER_PRIORITY_LANES_WEIGHTS),
+                        capacity > 0 ? capacity : Integer.MAX_VALUE);
+            case Configuration.DISPATCHER_EVENT_QUEUE_TYPE_SPILLING:
+                if (eventSerializer == null) {
+                    throw new IllegalArgumentException("Queue type " + type
+                            + " needs a serializer, see setEventSerializer()");
+                }
+                String dir = conf.getTrimmed(Configuration.DISPATCHER_SPILL_DIR);
+                return new SpillingEventQueue(
+                        new File(dir == null || dir.isEmpty()
+                                ? System.getProperty("java.io.tmpdir") : dir),
+                        QueuedEvent.serializer(eventSerializer),
+                        capacity > 0 ? capacity : SpillingEventQueue.DEFAULT_MEMORY_CAPACITY,
+                        conf.getInt(Configuration.DISPATCHER_SPILL_BATCH_SIZE,
+                                Configuration.DEFAULT_DISPATCHER_SPILL_BATCH_SIZE));
+            default:
+                throw new IllegalArgumentException("Unknown "
+                        + Configuration.DISPATCHER_EVENT_QUEUE_TYPE + ": " + type);
         }
+    }
 
-        @Override
-        public void handle(Event event) {
-            for (EventHandler<Event> handler : listofHandlers) {
-                handler.handle(event);
-            }
+    /**
+     * Create the wait strategy configured by
+     * {@link Configuration#DISPATCHER_WAIT_STRATEGY}. Only used when no
+     * strategy was set with {@link #setWaitStrategy(WaitStrategy)}.
+     *
+     * @param conf dispatcher configuration
+     * @return the strategy event threads wait for events with
+     */
+    protected WaitStrategy createWaitStrategy(Configuration conf) {
+        String name = conf.getTrimmed(Configuration.DISPATCHER_WAIT_STRATEGY,
+                Configuration.DEFAULT_DISPATCHER_WAIT_STRATEGY);
+        switch (name) {
+            case Configuration.DISPATCHER_WAIT_STRATEGY_BLOCKING:
+                return new BlockingWaitStrategy();
+            case Configuration.DISPATCHER_WAIT_STRATEGY_BUSY_SPIN:
+                return new BusySpinWaitStrategy();
+            case Configuration.DISPATCHER_WAIT_STRATEGY_YIELDING:
+                return new YieldingWaitStrategy();
+            case Configuration.DISPATCHER_WAIT_STRATEGY_BACKOFF_PARK:
+                return new BackoffParkWaitStrategy();
+            default:
+                throw new IllegalArgumentException("Unknown "
+                        + Configuration.DISPATCHER_WAIT_STRATEGY + ": " + name);
         }
+    }
+
+    /**
+     * Set how event threads wait for new events, overriding
+     * {@link Configuration#DISPATCHER_WAIT_STRATEGY}. Must be called before
+     * the dispatcher is initialized.
+     *
+     * @param waitStrategy the wait strategy
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = Objects.requireNonNull(waitStrategy);
+    }
 
-        void addHandler(EventHandler<Event> handler) {
-            listofHandlers.add(handler);
+    /**
+     * Create the executor listeners run on when multicasting in parallel:
+     * one virtual thread per listener call when available and allowed by
+     * {@link Configuration#DISPATCHER_MULTICAST_VIRTUAL_THREADS}, a
+     * ForkJoinPool otherwise.
+     *
+     * @param conf dispatcher configuration
+     * @return executor for listener calls
+     */
+    protected ExecutorService createMulticastExecutor(Configuration conf) {
+        if (conf.getBoolean(Configuration.DISPATCHER_MULTICAST_VIRTUAL_THREADS,
+                Configuration.DEFAULT_DISPATCHER_MULTICAST_VIRTUAL_THREADS)
+                && VirtualThreads.isAvailable()) {
+            return VirtualThreads.newVirtualThreadPerTaskExecutor();
         }
+        int parallelism = conf.getInt(Configuration.DISPATCHER_MULTICAST_PARALLELISM,
+                Configuration.DEFAULT_DISPATCHER_MULTICAST_PARALLELISM);
+        return new ForkJoinPool(parallelism > 0 ? parallelism
+                : Runtime.getRuntime().availableProcessors());
+    }
 
+    /**
+     * Run the listeners of event classes with several handlers concurrently
+     * on the given executor, overriding the one created for
+     * {@link Configuration#DISPATCHER_MULTICAST_PARALLEL}. The executor is
+     * not shut down by the dispatcher.
+     *
+     * @param executor executor for listener calls
+     * @param ordered  whether to wait for all listeners of an event before
+     *                 dispatching the next one
+     */
+    public void setMulticastExecutor(ExecutorService executor, boolean ordered) {
+        this.multicastExecutor = Objects.requireNonNull(executor);
+        this.ownMulticastExecutor = false;
+        this.orderedMulticast = ordered;
     }
 
-    public void disableExitOnDispatchException() {
-        exitOnDispatchException = false;
+    /**
+     * Create the work-stealing pool event classes registered as
+     * {@link DispatchMode#UNORDERED} are dispatched on, with
+     * {@link Configuration#DISPATCHER_UNORDERED_PARALLELISM} threads.
+     *
+     * @param conf dispatcher configuration
+     * @return executor for unordered events
+     */
+    protected ExecutorService createUnorderedExecutor(Configuration conf) {
+        int parallelism = conf.getInt(Configuration.DISPATCHER_UNORDERED_PARALLELISM,
+                Configuration.DEFAULT_DISPATCHER_UNORDERED_PARALLELISM);
+        // FIFO mode suits event tasks, which never join each other.
+        return new ForkJoinPool(parallelism > 0 ? parallelism
+                        : Runtime.getRuntime().availableProcessors(),
+                ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+
+    /**
+     * Create the executor event classes registered as
+     * {@link DispatchMode#BLOCKING} or {@link DispatchMode#BLOCKING_KEYED}
+     * are dispatched on: one virtual thread per task when available and
+     * allowed by {@link Configuration#DISPATCHER_BLOCKING_VIRTUAL_THREADS},
+     * otherwise a pool of {@link Configuration#DISPATCHER_BLOCKING_POOL_SIZE}
+     * daemon threads.
+     *
+     * @param conf dispatcher configuration
+     * @return executor for blocking handlers
+     */
+    protected ExecutorService createBlockingExecutor(Configuration conf) {
+        if (conf.getBoolean(Configuration.DISPATCHER_BLOCKING_VIRTUAL_THREADS,
+                Configuration.DEFAULT_DISPATCHER_BLOCKING_VIRTUAL_THREADS)
+                && VirtualThreads.isAvailable()) {
+            return VirtualThreads.newVirtualThreadPerTaskExecutor();
+        }
+        int poolSize = conf.getInt(Configuration.DISPATCHER_BLOCKING_POOL_SIZE,
+                Configuration.DEFAULT_DISPATCHER_BLOCKING_POOL_SIZE);
+        if (poolSize < 1) {
+            throw new IllegalArgumentException(Configuration.DISPATCHER_BLOCKING_POOL_SIZE
+                    + " should be at least 1, but was " + poolSize);
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+            Thread thread = new Thread(runnable,
+                    dispatcherThreadName + " blocking #" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Dispatch event classes registered as {@link DispatchMode#BLOCKING} or
+     * {@link DispatchMode#BLOCKING_KEYED} on the given executor instead of
+     * creating one. The executor is not shut down by the dispatcher.
+     *
+     * @param executor executor for blocking handlers
+     */
+    public void setBlockingExecutor(ExecutorService executor) {
+        synchronized (registrationLock) {
+            this.blockingExecutor = Objects.requireNonNull(executor);
+            this.keyedBlockingExecutor = new KeyedSerialExecutor(executor);
+            this.ownBlockingExecutor = false;
+        }
+    }
+
+    // Called under registrationLock, once inited.
+    private void createAsyncExecutor(DispatchMode mode) {
+        switch (mode) {
+            case UNORDERED:
+                if (unorderedExecutor == null) {
+                    unorderedExecutor = createUnorderedExecutor(getConfig());
+                    ownUnorderedExecutor = true;
+                }
+                break;
+            case BLOCKING:
+            case BLOCKING_KEYED:
+                if (blockingExecutor == null) {
+                    blockingExecutor = createBlockingExecutor(getConfig());
+                    keyedBlockingExecutor = new KeyedSerialExecutor(blockingExecutor);
+                    ownBlockingExecutor = true;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Dispatch event classes registered as {@link DispatchMode#UNORDERED} on
+     * the given executor instead of creating a pool. The executor is not
+     * shut down by the dispatcher.
+     *
+     * @param executor executor for unordered events
+     */
+    public void setUnorderedExecutor(ExecutorService executor) {
+        synchronized (registrationLock) {
+            this.unorderedExecutor = Objects.requireNonNull(executor);
+            this.ownUnorderedExecutor = false;
+        }
+    }
+
+    /**
+     * Set the serializer events are written to disk with, needed when
+     * {@link Configuration#DISPATCHER_JOURNAL_DIR} is set or the queue type
+     * is {@link Configuration#DISPATCHER_EVENT_QUEUE_TYPE_SPILLING}. Must be
+     * called before the dispatcher is inited.
+     *
+     * @param serializer serializer for every event class handled
+     */
+    public void setEventSerializer(EventSerializer serializer) {
+        this.eventSerializer = Objects.requireNonNull(serializer);
     }
 
+    /**
+     * Create the queue backing the given partition. Partition 0 always uses
+     * the event queue of this dispatcher, the others get a queue of the same
+     * kind and capacity.
+     *
+     * @param index partition index
+     * @return the event queue of the partition
+     */
+    protected BlockingQueue<Event> createPartitionQueue(int index) {
+        if (index == 0) {
+            return eventQueue;
+        }
+        if (configuredQueue) {
+            return createEventQueue(getConfig());
+        }
+        if (eventQueue instanceof RingBufferEventQueue) {
+            return new RingBufferEventQueue(((RingBufferEventQueue) eventQueue).capacity());
+        }
+        if (eventQueue instanceof PriorityLaneEventQueue) {
+            PriorityLaneEventQueue lanes = (PriorityLaneEventQueue) eventQueue;
+            return new PriorityLaneEventQueue(lanes.getPolicy(), lanes.getWeights(),
+                    lanes.capacity());
+        }
+        int capacity = eventQueue.remainingCapacity();
+        if (capacity == Integer.MAX_VALUE) {
+            return new LinkedBlockingQueue<Event>();
+        }
+        return new LinkedBlockingQueue<Event>(capacity + eventQueue.size());
+    }
+
+    /**
+     * Set the key events are partitioned by when more than one partition is
+     * configured. Events with equal keys are dispatched in order on the same
+     * thread; by default all events of one enum class share a partition.
+     *
+     * @param keyExtractor extracts the partition key of an event
+     */
+    public void setPartitionKeyExtractor(EventKeyExtractor keyExtractor) {
+        this.partitionKeyExtractor = Objects.requireNonNull(keyExtractor);
+    }
+
+    /**
+     * Set the key used by {@link OverflowPolicy#COALESCE} to find the queued
+     * event a new event supersedes. Must be called before the dispatcher is
+     * initialized.
+     *
+     * @param keyExtractor extracts the coalescing key of an event
+     */
+    public void setOverflowKeyExtractor(EventKeyExtractor keyExtractor) {
+        this.overflowKeyExtractor = Objects.requireNonNull(keyExtractor);
+    }
+
+    /**
+     * Set a callback for the events discarded by the overflow policy.
+     *
+     * @param handler callback, called on the producer thread
+     */
+    public void setRejectedEventHandler(RejectedEventHandler handler) {
+        this.rejectedEventHandler = handler;
+    }
+
+    /**
+     * Number of times the queue was found full and the given policy applied.
+     * {@link OverflowPolicy#BLOCK} counts producers that had to wait,
+     * {@link OverflowPolicy#COALESCE} counts replaced events and all other
+     * policies count discarded events.
+     *
+     * @param policy overflow policy
+     * @return number of events the policy applied to
+     */
+    public long getOverflowCount(OverflowPolicy policy) {
+        return overflowCounts.get(policy).sum();
+    }
+
+    private Partition selectPartition(Event event) {
+        Partition[] current = partitions;
+        if (current.length == 1) {
+            return current[0];
+        }
+        int h = partitionKeyExtractor.getKey(event).hashCode();
+        return current[Math.floorMod(h ^ (h >>> 16), current.length)];
+    }
+
+    private boolean isQueueDrained(Partition partition) {
+        boolean empty = partition.queue.isEmpty();
+        Partition[] current = partitions;
+        if (current.length == 1) {
+            return empty;
+        }
+        // Other partition threads may still be dispatching, so the dispatcher
+        // is only drained once every partition has seen its queue empty.
+        partition.idle = empty;
+        if (!empty) {
+            return false;
+        }
+        for (Partition other : current) {
+            if (!other.idle) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isEventThreadAlive() {
+        for (Partition partition : partitions) {
+            if (partition.thread != null && partition.thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the calling thread is one of the event threads
+     */
+    boolean isEventThread() {
+        Thread current = Thread.currentThread();
+        for (Partition partition : partitions) {
+            if (partition.thread == current) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void setDrainEventsOnStop() {
+        drainEventsOnStop = true;
+    }
+
+    protected void serviceStop() throws Exception {
+        if (drainEventsOnStop) {
+            blockNewEvents = true;
+            for (PrimitiveEventLane<?> lane : primitiveLanes) {
+                lane.close();
+            }
+            LOG.info("AsyncDispatcher is draining to stop, ignoring any new events.");
+            long endTime = TimeUtil.getTime() +
+                    getConfig().getLong(Configuration.DISPATCHER_DRAIN_EVENTS_TIMEOUT, Configuration.DEFAULT_DISPATCHER_DRAIN_EVENTS_TIMEOUT);
+
+            synchronized (waitForDrained) {
+                while (!isDrained() && eventHandlingThread != null
+                        && isEventThreadAlive()
+                        && TimeUtil.getTime() < endTime) {
+                    waitForDrained.wait(100);
+                    LOG.info("Waiting for AsyncDispatcher to drain. Thread state is :" +
+                            eventHandlingThread.getState());
+                }
+            }
+        }
+        stopped = true;
+        for (PrimitiveEventLane<?> lane : primitiveLanes) {
+            lane.close();
+        }
+        for (Partition partition : partitions) {
+            if (partition.thread != null) {
+                partition.thread.interrupt();
+            }
+        }
+        for (PrimitiveEventLane<?> lane : primitiveLanes) {
+            if (lane.thread != null) {
+                lane.thread.interrupt();
+            }
+        }
+        for (Partition partition : partitions) {
+            if (partition.thread != null) {
+                try {
+                    partition.thread.join();
+                } catch (InterruptedException ie) {
+                    LOG.warn("Interrupted Exception while stopping", ie);
+                }
+            }
+        }
+        for (PrimitiveEventLane<?> lane : primitiveLanes) {
+            if (lane.thread != null) {
+                try {
+                    lane.thread.join();
+                } catch (InterruptedException ie) {
+                    LOG.warn("Interrupted Exception while stopping", ie);
+                }
+            }
+            // Not drained, or published while closing.
+            int left = lane.size();
+            if (left > 0) {
+                LOG.warn("Discarded " + left + " events left on " + lane.getName());
+            }
+        }
+        for (BatchHandlerAdapter adapter : batchHandlers) {
+            try {
+                adapter.flush(-1);
+            } catch (Throwable t) {
+                LOG.warn("Error in batch handler while stopping", t);
+            }
+        }
+        if (batchLingerExecutor != null) {
+            batchLingerExecutor.shutdownNow();
+        }
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            bulkhead.shutdown();
+        }
+        for (Partition partition : partitions) {
+            if (partition.queue instanceof Closeable) {
+                ((Closeable) partition.queue).close();
+            }
+        }
+        if (watchdogExecutor != null) {
+            watchdogExecutor.shutdownNow();
+        }
+        printEventDetailsExecutor.shutdownNow();
+        if (multicastExecutor != null && ownMulticastExecutor) {
+            multicastExecutor.shutdown();
+        }
+        if (unorderedExecutor != null && ownUnorderedExecutor) {
+            unorderedExecutor.shutdown();
+        }
+        if (blockingExecutor != null && ownBlockingExecutor) {
+            blockingExecutor.shutdown();
+        }
+        if (journal != null) {
+            // Events still queued were not acknowledged and are replayed on
+            // the next start.
+            journal.close();
+        }
+
+        // stop all the components
+        super.serviceStop();
+    }
+
+    protected void dispatch(Event event) {
+        //all events go thru this loop
+        LOG.debug("Dispatching the event {}.{}", event.getClass().getName(), event);
+
+        try {
+            invokeHandler(event);
+        } catch (Throwable t) {
+            handleDispatchError(t);
+        }
+    }
+
+    void invokeHandler(Event event) throws Throwable {
+        Class<? extends Enum> type = event.getType().getDeclaringClass();
+        EventHandler handler = eventDispatchers.get(type);
+        if (handler != null) {
+            if (multicastExecutor != null && handler instanceof MultiListenerHandler) {
+                multicast((MultiListenerHandler) handler, event);
+            } else {
+                handler.handle(event);
+            }
+        } else {
+            throw new Exception("No handler for registered for " + type);
+        }
+    }
+
+    void handleDispatchError(Throwable t) {
+        //TODO Maybe log the state of the queue
+        LOG.error(MarkerFactory.getMarker("FATAL"), "Error in dispatcher thread", t);
+        // If serviceStop is called, we should exit this thread gracefully.
+        if (exitOnDispatchException && stopped == false) {
+            stopped = true;
+            Thread shutDownThread = new Thread(createShutDownThread());
+            shutDownThread.setName("AsyncDispatcher ShutDown handler");
+            shutDownThread.start();
+        }
+    }
+
+    /**
+     * Call the listeners of an event concurrently. The event thread runs the
+     * last listener itself and, for ordered multicast, waits for the others
+     * and rethrows the first failure. Failures of unordered calls are handled
+     * like failures on the event thread.
+     */
+    private void multicast(MultiListenerHandler multiHandler, final Event event)
+            throws Throwable {
+        final EventHandler<Event>[] handlers = multiHandler.handlers;
+        final int forked = handlers.length - 1;
+        final CountDownLatch done = orderedMulticast ? new CountDownLatch(forked) : null;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < forked; i++) {
+            final EventHandler<Event> handler = handlers[i];
+            // Unordered listeners may outlive the dispatch.
+            final JournalAcks.Ack ack = holdJournalAck();
+            Runnable call = () -> {
+                JournalAcks.Ack outer = ack != null ? ack.begin() : null;
+                try {
+                    handler.handle(event);
+                } catch (Throwable t) {
+                    if (done == null) {
+                        handleDispatchError(t);
+                    } else {
+                        failure.compareAndSet(null, t);
+                    }
+                } finally {
+                    if (ack != null) {
+                        ack.end(outer);
+                    }
+                    recycle(event);
+                    if (done != null) {
+                        done.countDown();
+                    } else {
+                        asyncInFlight.decrementAndGet();
+                    }
+                }
+            };
+            if (done == null) {
+                asyncInFlight.incrementAndGet();
+            }
+            // Listeners may outlive the dispatch when unordered or stopping.
+            retain(event);
+            try {
+                multicastExecutor.execute(call);
+            } catch (RejectedExecutionException e) {
+                call.run();
+            }
+        }
+        handlers[forked].handle(event);
+        if (done != null) {
+            try {
+                done.await();
+            } catch (InterruptedException ie) {
+                // Stopping, leave the remaining listeners to the executor.
+                Thread.currentThread().interrupt();
+                return;
+            }
+            Throwable t = failure.get();
+            if (t != null) {
+                throw t;
+            }
+        }
+    }
+
+    protected boolean isDrained() {
+        if (!drained || asyncInFlight.get() != 0) {
+            return false;
+        }
+        for (PrimitiveEventLane<?> lane : primitiveLanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Age of the oldest event waiting in the queues, going by the head of
+     * each queue. With priority lanes that is the head of the highest
+     * non-empty lane, which may not be the oldest event.
+     *
+     * @return age in milliseconds, 0 if nothing is queued or -1 if
+     * {@link Configuration#DISPATCHER_QUEUE_TIME_TRACKING} is off
+     */
+    public long getOldestPendingEventAge() {
+        if (!trackQueueTime) {
+            return -1;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (Partition partition : partitions) {
+            Event head = partition.queue.peek();
+            if (head instanceof QueuedEvent && ((QueuedEvent) head).enqueueTimeNanos >= 0) {
+                oldest = Math.min(oldest, ((QueuedEvent) head).enqueueTimeNanos);
+            }
+        }
+        if (oldest == Long.MAX_VALUE) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(
+                Math.max(0, TimeUtil.monotonicNowNanos() - oldest));
+    }
+
+    /**
+     * Number of queued events of the given type, kept up to date as events
+     * are queued and taken, so it is cheap to call.
+     *
+     * @param type event type
+     * @return number of queued events of the type
+     */
+    public long getPendingEventCount(Enum<?> type) {
+        LongAdder[] counters = pendingByType.get(type.getDeclaringClass());
+        return counters == null ? 0 : counters[type.ordinal()].sum();
+    }
+
+    private LongAdder pendingCounter(Event event) {
+        return pendingCounter(event.getType());
+    }
+
+    private LongAdder pendingCounter(Enum type) {
+        if (type == null) {
+            // Not dispatchable, but still goes through the queue.
+            return untypedPending;
+        }
+        Class<? extends Enum> eventClass = type.getDeclaringClass();
+        LongAdder[] counters = pendingByType.get(eventClass);
+        if (counters == null) {
+            Enum[] constants = eventClass.getEnumConstants();
+            LongAdder[] created = new LongAdder[constants.length];
+            for (int i = 0; i < created.length; i++) {
+                created[i] = new LongAdder();
+            }
+            counters = pendingByType.putIfAbsent(eventClass, created);
+            if (counters == null) {
+                counters = created;
+            }
+        }
+        return counters[type.ordinal()];
+    }
+
+    /**
+     * Uncount an event that was queued or about to be, but is not going to be
+     * dispatched.
+     */
+    private void countDequeued(Event event) {
+        pendingCounter(event).decrement();
+        if (event instanceof QueuedEvent && ((QueuedEvent) event).journalSequence >= 0) {
+            journal.ack(((QueuedEvent) event).journalSequence);
+        }
+    }
+
+    public int getEventQueueSize() {
+        Partition[] current = partitions;
+        if (current.length == 1) {
+            return current[0].queue.size();
+        }
+        int size = 0;
+        for (Partition partition : current) {
+            size += partition.queue.size();
+        }
+        return size;
+    }
+
+    @Override
+    public EventHandler<Event> getEventHandler() {
+        return handlerInstance;
+    }
+
+    /**
+     * @return the metrics of an event class, or null if it has none
+     */
+    EventTypeMetrics getMetrics(Class<? extends Enum> eventClass) {
+        return eventTypeMetricsMap.get(eventClass);
+    }
+
+    public void addMetrics(EventTypeMetrics metrics, Class<? extends Enum> eventClass) {
+        synchronized (registrationLock) {
+            Map<Class<? extends Enum>, EventTypeMetrics> copy = new HashMap<>(eventTypeMetricsMap);
+            copy.put(eventClass, metrics);
+            eventTypeMetricsMap = Collections.unmodifiableMap(copy);
+        }
+    }
+
+    @Override
+    public void register(Class<? extends Enum> eventType, EventHandler handler) {
+        if (handler instanceof EventCoalescer) {
+            setCoalescer(eventType, (EventCoalescer) handler);
+        }
+        LOG.info("Registering " + eventType + " for " + handler.getClass());
+        synchronized (registrationLock) {
+            Map<Class<? extends Enum>, EventHandler> copy = new HashMap<>(eventDispatchers);
+            /* check to see if we have a listener registered */
+            EventHandler<Event> registeredHandler = (EventHandler<Event>) copy.get(eventType);
+            if (registeredHandler == null) {
+                copy.put(eventType, handler);
+            } else if (!(registeredHandler instanceof MultiListenerHandler)) {
+                /* for multiple listeners of an event add the multiple listener handler */
+                copy.put(eventType, new MultiListenerHandler(
+                        new EventHandler[] {registeredHandler, handler}));
+            } else {
+                /* already a multilistener, replace it by one with the new handler */
+                copy.put(eventType, ((MultiListenerHandler) registeredHandler).withHandler(handler));
+            }
+            eventDispatchers = Collections.unmodifiableMap(copy);
+        }
+    }
+
+    /**
+     * Remove a handler registered for the given event class. Safe to call
+     * while the dispatcher is running; an event being dispatched may still
+     * reach the handler.
+     *
+     * @param eventType enum class declaring the event types
+     * @param handler   the handler to remove
+     * @return true if the handler was registered
+     */
+    @SuppressWarnings("unchecked")
+    public boolean unregister(Class<? extends Enum> eventType, EventHandler handler) {
+        synchronized (registrationLock) {
+            Map<Class<? extends Enum>, EventHandler> copy = new HashMap<>(eventDispatchers);
+            EventHandler<Event> registeredHandler = (EventHandler<Event>) copy.get(eventType);
+            if (registeredHandler == handler) {
+                copy.remove(eventType);
+            } else if (registeredHandler instanceof MultiListenerHandler) {
+                EventHandler<Event> remaining =
+                        ((MultiListenerHandler) registeredHandler).withoutHandler(handler);
+                if (remaining == registeredHandler) {
+                    return false;
+                }
+                copy.put(eventType, remaining);
+            } else {
+                return false;
+            }
+            LOG.info("Unregistered " + eventType + " for " + handler.getClass());
+            eventDispatchers = Collections.unmodifiableMap(copy);
+            return true;
+        }
+    }
+
+    /**
+     * Register a handler and the priority of its event class. Priorities only
+     * take effect with a {@link PriorityLaneEventQueue}, where they select the
+     * lane, 0 being the highest priority; with other queues they are ignored.
+     *
+     * @param eventType enum class declaring the event types
+     * @param handler   event handler
+     * @param priority  lane of the event class, 0 being the highest priority
+     */
+    public void register(Class<? extends Enum> eventType, EventHandler handler,
+                         int priority) {
+        if (priority < 0) {
+            throw new IllegalArgumentException("Invalid priority " + priority
+                    + " for " + eventType);
+        }
+        eventPriorities.put(eventType, priority);
+        assignLane(eventType, priority);
+        register(eventType, handler);
+    }
+
+    /**
+     * Register a handler and how events of its class are dispatched. Events
+     * of classes not dispatched {@link DispatchMode#ORDERED} are still queued
+     * like all others, but the event thread hands them to an executor and
+     * moves on, so they run concurrently with ordered events. Draining on
+     * stop waits for them as well.
+     *
+     * @param eventType enum class declaring the event types
+     * @param handler   event handler
+     * @param mode      dispatch mode of the event class, replacing any mode
+     *                  it was registered with before
+     */
+    public void register(Class<? extends Enum> eventType, EventHandler handler,
+                         DispatchMode mode) {
+        synchronized (registrationLock) {
+            dispatchModes.put(eventType, Objects.requireNonNull(mode));
+            if (mode != DispatchMode.ORDERED) {
+                // Otherwise created in serviceInit.
+                if (getConfig() != null) {
+                    createAsyncExecutor(mode);
+                }
+                asyncDispatchEnabled = true;
+            }
+        }
+        register(eventType, handler);
+    }
+
+    /**
+     * Register a handler completing events asynchronously. Its events count
+     * as in flight until the stage returned for them completes, and no more
+     * than {@code maxInFlight} of them are in flight at once: beyond that the
+     * dispatching thread waits for a completion. Metrics record the time
+     * {@link AsyncEventHandler#handleAsync} takes to return.
+     *
+     * @param eventType   enum class declaring the event types
+     * @param handler     asynchronous event handler
+     * @param maxInFlight most events of this registration in flight at once
+     * @return the handler registered on its behalf, to pass to
+     * {@link #unregister(Class, EventHandler)}
+     */
+    public EventHandler<Event> registerAsync(Class<? extends Enum> eventType,
+                                             AsyncEventHandler<? extends Event> handler,
+                                             int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Invalid maxInFlight " + maxInFlight
+                    + " for " + eventType);
+        }
+        EventHandler<Event> adapter = new AsyncHandlerAdapter(this,
+                (AsyncEventHandler<Event>) handler, maxInFlight);
+        register(eventType, adapter);
+        return adapter;
+    }
+
+    /**
+     * Register a handler taking events in batches. Dispatched events of the
+     * class are collected until there are {@code maxBatchSize} of them or the
+     * first has waited for {@code lingerTime} milliseconds, and count as in
+     * flight until their batch is handled. Metrics record each event as it is
+     * collected and each batch with
+     * {@link EventTypeMetrics#recordBatch(int, long)}.
+     *
+     * @param eventType    enum class declaring the event types
+     * @param handler      batch event handler
+     * @param maxBatchSize most events per batch
+     * @param lingerTime   longest time an event waits for its batch to fill,
+     *                     in milliseconds
+     * @return the handler registered on its behalf, to pass to
+     * {@link #unregister(Class, EventHandler)}
+     */
+    public EventHandler<Event> registerBatch(Class<? extends Enum> eventType,
+                                             BatchEventHandler<? extends Event> handler,
+                                             int maxBatchSize, long lingerTime) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Invalid maxBatchSize " + maxBatchSize
+                    + " for " + eventType);
+        }
+        if (lingerTime < 1) {
+            throw new IllegalArgumentException("Invalid lingerTime " + lingerTime
+                    + " for " + eventType);
+        }
+        ScheduledExecutorService lingerExecutor;
+        synchronized (registrationLock) {
+            if (batchLingerExecutor == null) {
+                ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                    Thread thread = new Thread(runnable, dispatcherThreadName + " batch linger");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                timer.setRemoveOnCancelPolicy(true);
+                batchLingerExecutor = timer;
+            }
+            lingerExecutor = batchLingerExecutor;
+        }
+        BatchHandlerAdapter adapter = new BatchHandlerAdapter(this, eventType,
+                (BatchEventHandler<Event>) handler, maxBatchSize, lingerTime, lingerExecutor);
+        batchHandlers.add(adapter);
+        register(eventType, adapter);
+        return adapter;
+    }
+
+    private void assignLane(Class<? extends Enum> eventType, int priority) {
+        for (Partition partition : partitions) {
+            if (partition.queue instanceof PriorityLaneEventQueue) {
+                ((PriorityLaneEventQueue) partition.queue).setLane(eventType, priority);
+            }
+        }
+    }
+
+    /**
+     * Handle events of the given class on a bulkhead of their own: at most
+     * {@code maxConcurrency} of them at once, in no particular order unless
+     * that is 1, with up to {@code maxQueueSize} more waiting. Events finding
+     * the bulkhead full are rejected, and handler failures are logged and
+     * counted instead of stopping the dispatcher. Takes precedence over the
+     * {@link DispatchMode} of the class.
+     *
+     * @param eventType      enum class declaring the event types
+     * @param maxConcurrency most events of the class handled at once
+     * @param maxQueueSize   most events of the class waiting for a thread
+     * @return the bulkhead, whose counters show how saturated it is
+     */
+    public Bulkhead setBulkhead(Class<? extends Enum> eventType, int maxConcurrency,
+                                int maxQueueSize) {
+        Bulkhead bulkhead = new Bulkhead(dispatcherThreadName + " bulkhead "
+                + eventType.getSimpleName(), maxConcurrency, maxQueueSize);
+        synchronized (registrationLock) {
+            Bulkhead previous = bulkheads.put(eventType, bulkhead);
+            if (previous != null) {
+                previous.shutdown();
+            }
+            asyncDispatchEnabled = true;
+        }
+        return bulkhead;
+    }
+
+    /**
+     * @param eventType enum class declaring the event types
+     * @return the bulkhead of the class, or null if it has none
+     */
+    public Bulkhead getBulkhead(Class<? extends Enum> eventType) {
+        return bulkheads.get(eventType);
+    }
+
+    /**
+     * Create a lane for events of the given class that carry no more than a
+     * key and two long values. Events published on the lane are stored as
+     * primitives in a ring of their own and handed to the handler on a
+     * dedicated thread, without creating event objects. They skip the event
+     * queue and everything around it: coalescing, the journal, metrics and
+     * the handlers registered for the class. Handler failures are handled
+     * like failures on the event thread.
+     *
+     * @param eventType enum class declaring the event types
+     * @param handler   handler of the events published on the lane
+     * @param capacity  most events waiting on the lane, rounded up to a
+     *                  power of two
+     * @return the lane, to publish events on
+     */
+    public <T extends Enum<T>> PrimitiveEventLane<T> createPrimitiveLane(
+            Class<T> eventType, PrimitiveEventHandler<T> handler, int capacity) {
+        PrimitiveEventLane<T> lane = new PrimitiveEventLane<>(dispatcherThreadName
+                + " primitive " + eventType.getSimpleName(), eventType, handler, capacity);
+        synchronized (registrationLock) {
+            primitiveLanes.add(lane);
+            if (primitiveLanesStarted) {
+                startPrimitiveLane(lane);
+            }
+        }
+        return lane;
+    }
+
+    // Called under registrationLock.
+    private void startPrimitiveLane(PrimitiveEventLane<?> lane) {
+        Thread thread = new Thread(() -> {
+            while (!stopped && !Thread.currentThread().isInterrupted()) {
+                try {
+                    lane.awaitAvailable();
+                } catch (InterruptedException ie) {
+                    if (!stopped) {
+                        LOG.warn(lane.getName() + " interrupted. Returning.");
+                    }
+                    return;
+                }
+                try {
+                    lane.dispatchAvailable();
+                } catch (Throwable t) {
+                    handleDispatchError(t);
+                }
+            }
+        });
+        thread.setName(lane.getName());
+        lane.thread = thread;
+        thread.start();
+    }
+
+    /**
+     * Set how long dispatching an event of the given class may take before
+     * the watchdog flags it, overriding
+     * {@link Configuration#DISPATCHER_WATCHDOG_BUDGET}.
+     *
+     * @param eventType enum class declaring the event types
+     * @param budget    dispatch budget in milliseconds
+     */
+    public void setDispatchBudget(Class<? extends Enum> eventType, long budget) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("Invalid dispatch budget " + budget
+                    + " for " + eventType);
+        }
+        dispatchBudgets.put(eventType, TimeUnit.MILLISECONDS.toNanos(budget));
+    }
+
+    private long dispatchBudget(Class<? extends Enum> eventType) {
+        Long budget = dispatchBudgets.get(eventType);
+        return budget == null ? defaultDispatchBudget : budget;
+    }
+
+    /**
+     * Run by the watchdog: log the stack trace of each event thread that has
+     * been dispatching the same event for longer than its budget, once per
+     * event, and interrupt overdue bulkhead handlers if configured to.
+     */
+    private void checkStuckDispatches() {
+        try {
+            checkStuckPartitions();
+            if (interruptIsolated) {
+                interruptOverdueIsolated();
+            }
+        } catch (Throwable t) {
+            // Thrown out of the scheduled task, it would cancel the watchdog.
+            LOG.error("Error in dispatcher watchdog", t);
+        }
+    }
+
+    private void checkStuckPartitions() {
+        long now = TimeUtil.monotonicNowNanos();
+        for (Partition partition : partitions) {
+            Enum type = partition.dispatchingType;
+            long sequence = partition.dispatchSequence;
+            if (type == null || sequence == partition.flaggedSequence) {
+                continue;
+            }
+            long running = now - partition.dispatchStart;
+            long budget = partition.dispatchBudget;
+            if (running > budget) {
+                partition.flaggedSequence = sequence;
+                stuckDispatches.increment();
+                Thread thread = partition.thread;
+                Exception trace = new Exception("Stack trace of " + thread.getName());
+                trace.setStackTrace(thread.getStackTrace());
+                LOG.warn("Dispatch of " + type + " on " + thread.getName()
+                        + " has been running for " + TimeUnit.NANOSECONDS.toMillis(running)
+                        + " ms, over its budget of " + TimeUnit.NANOSECONDS.toMillis(budget)
+                        + " ms", trace);
+            }
+        }
+    }
+
+    private void interruptOverdueIsolated() {
+        for (Map.Entry<Class<? extends Enum>, Bulkhead> entry : bulkheads.entrySet()) {
+            int interrupted = entry.getValue().interruptOverdue(dispatchBudget(entry.getKey()));
+            if (interrupted > 0) {
+                LOG.warn("Interrupted " + interrupted + " handlers of "
+                        + entry.getValue().getName() + " running past their budget");
+            }
+        }
+    }
+
+    /**
+     * How long the event threads have been stuck: the longest time an event
+     * thread has been dispatching a single event past its budget.
+     *
+     * @return time in milliseconds, 0 if no event thread is past its budget
+     * or -1 if the watchdog is disabled
+     */
+    public long getStuckDispatchTime() {
+        if (!watchdogEnabled) {
+            return -1;
+        }
+        long now = TimeUtil.monotonicNowNanos();
+        long stuck = 0;
+        for (Partition partition : partitions) {
+            if (partition.dispatchingType != null) {
+                long running = now - partition.dispatchStart;
+                if (running > partition.dispatchBudget) {
+                    stuck = Math.max(stuck, running);
+                }
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(stuck);
+    }
+
+    /**
+     * @return number of dispatches the watchdog found past their budget
+     */
+    public long getStuckDispatchCount() {
+        return stuckDispatches.sum();
+    }
+
+    /**
+     * Coalesce queued events of the given class with the given coalescer.
+     * Replaces any coalescer previously set for the class.
+     *
+     * @param eventType enum class declaring the event types
+     * @param coalescer coalescer for events of that class
+     */
+    public void setCoalescer(Class<? extends Enum> eventType, EventCoalescer coalescer) {
+        coalescing.setCoalescer(eventType, coalescer);
+    }
+
+    /**
+     * @return number of events merged into an already queued event instead
+     * of being queued themselves
+     */
+    public long getCoalescedEventCount() {
+        return coalescing.getCoalescedCount();
+    }
+
+    /**
+     * @return the journal, or null if events are not journaled
+     */
+    EventJournal getJournal() {
+        return journal;
+    }
+
+    long appendToJournal(Event event) {
+        try {
+            return journal.append(event);
+        } catch (IOException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new RuntimeException("Failed to journal event " + event, e);
+        }
+    }
+
+    Runnable createShutDownThread() {
+        return () -> {
+            LOG.info("Exiting, bbye..");
+            System.exit(-1);
+        };
+    }
+
+    private static boolean queueLogDue(long lastLogTime) {
+        return lastLogTime == 0
+                || TimeUtil.monotonicNowNanos() - lastLogTime >= QUEUE_LOG_INTERVAL_NANOS;
+    }
+
+    class GenericEventHandler implements EventHandler<Event> {
+        private void printEventQueueDetails() {
+            for (Map.Entry<Class<? extends Enum>, LongAdder[]> entry : pendingByType.entrySet()) {
+                Enum[] types = entry.getKey().getEnumConstants();
+                LongAdder[] counters = entry.getValue();
+                for (int i = 0; i < counters.length; i++) {
+                    long num = counters[i].sum();
+                    if (num > 0) {
+                        LOG.info("Event type: " + types[i]
+                                + ", Event record counter: " + num);
+                    }
+                }
+            }
+        }
+
+        public void handle(Event event) {
+            if (blockNewEvents) {
+                recycle(event);
+                return;
+            }
+            if (coalescing.isEnabled() && coalescing.coalescePending(event, -1)) {
+                return;
+            }
+            long sequence = -1;
+            if (journal != null) {
+                try {
+                    sequence = appendToJournal(event);
+                } catch (RuntimeException e) {
+                    coalescing.forget(event, OverflowPolicy.REJECT);
+                    throw e;
+                }
+            }
+            Partition partition = selectPartition(event);
+            BlockingQueue<Event> queue = partition.queue;
+            if (partitions.length > 1) {
+                partition.idle = false;
+            }
+            drained = false;
+
+            /* all this method does is enqueue all the events onto the queue */
+            // Count the event up front so counters never go negative when the
+            // event thread takes it right away; undone if it is not queued.
+            int qSize = queue.size();
+            LongAdder typeCounter = pendingCounter(event);
+            typeCounter.increment();
+            if (qSize != 0 && qSize % 1000 == 0 && lastEventQueueSizeLogged != qSize) {
+                lastEventQueueSizeLogged = qSize;
+                LOG.info("Size of event-queue is " + qSize);
+            }
+            if (qSize != 0 && qSize % detailsInterval == 0 && lastEventDetailsQueueSizeLogged != qSize
+                    && queueLogDue(lastEventDetailsLogTime)) {
+                lastEventDetailsQueueSizeLogged = qSize;
+                lastEventDetailsLogTime = TimeUtil.monotonicNowNanos();
+                printEventDetailsExecutor.submit(this::printEventQueueDetails);
+                printTrigger = true;
+            }
+            int remCapacity = partition.capacity - qSize;
+            if (remCapacity < partition.lowCapacityThreshold && queueLogDue(lastLowCapacityLogTime)) {
+                lastLowCapacityLogTime = TimeUtil.monotonicNowNanos();
+                LOG.warn("Very low remaining capacity in the event-queue: " + remCapacity);
+            }
+            Event queued = trackQueueTime || sequence >= 0
+                    ? new QueuedEvent(event, trackQueueTime ? TimeUtil.monotonicNowNanos() : -1,
+                    sequence) : event;
+            try {
+                if (overflowPolicy == OverflowPolicy.BLOCK) {
+                    if (remCapacity == 0) {
+                        overflowCounts.get(OverflowPolicy.BLOCK).increment();
+                    }
+                    queue.put(queued);
+                } else if (!queue.offer(queued)) {
+                    handleOverflow(partition, queued);
+                }
+            } catch (InterruptedException e) {
+                if (!stopped) {
+                    LOG.warn("AsyncDispatcher thread interrupted", e);
+                }
+                typeCounter.decrement();
+                if (sequence >= 0) {
+                    journal.ack(sequence);
+                }
+                coalescing.forget(event, overflowPolicy);
+                recycle(event);
+                // Need to reset drained flag to true if event queue is empty,
+                // otherwise dispatcher will hang on stop.
+                drained = isQueueDrained(partition);
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Queue an event that must not be lost, such as a barrier that others
+     * wait for. It bypasses coalescing, the journal and the overflow policy,
+     * waiting for space if the queue is full. Only supported on a dispatcher
+     * with a single FIFO partition, where the event is dispatched after
+     * everything queued before it; see {@link #checkControlEvents()}.
+     */
+    void enqueueControlEvent(ControlEvent event) throws InterruptedException {
+        checkControlEvents();
+        Partition partition = partitions[0];
+        drained = false;
+        LongAdder typeCounter = pendingCounter(event);
+        typeCounter.increment();
+        try {
+            partition.queue.put(event);
+        } catch (InterruptedException e) {
+            typeCounter.decrement();
+            drained = isQueueDrained(partition);
+            throw e;
+        }
+    }
+
+    /**
+     * Check that control events are dispatched after everything queued before
+     * them. Not the case with several partitions, or with priority lanes,
+     * which would put them in the lowest priority lane.
+     *
+     * @throws IllegalStateException if they are not
+     */
+    void checkControlEvents() {
+        Partition[] current = partitions;
+        if (current.length != 1) {
+            throw new IllegalStateException("Control events need a single partition, "
+                    + dispatcherThreadName + " has " + current.length);
+        }
+        if (current[0].queue instanceof PriorityLaneEventQueue) {
+            throw new IllegalStateException("Control events need a FIFO queue, "
+                    + dispatcherThreadName + " has priority lanes");
+        }
+    }
+
+    private void handleOverflow(Partition partition, Event event)
+            throws InterruptedException {
+        BlockingQueue<Event> queue = partition.queue;
+        switch (overflowPolicy) {
+            case BLOCK_WITH_TIMEOUT:
+                if (!queue.offer(event, overflowBlockTimeout, TimeUnit.MILLISECONDS)) {
+                    rejectEvent(event, OverflowPolicy.BLOCK_WITH_TIMEOUT);
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(event)) {
+                    Event oldest = queue instanceof PriorityLaneEventQueue
+                            ? ((PriorityLaneEventQueue) queue).pollLowestPriority()
+                            : queue.poll();
+                    if (oldest instanceof ControlEvent) {
+                        // Never dropped, it moves to the tail instead.
+                        queue.put(oldest);
+                    } else if (oldest != null) {
+                        rejectEvent(oldest, OverflowPolicy.DROP_OLDEST);
+                    }
+                }
+                break;
+            case COALESCE:
+                if (coalesce(partition, event)) {
+                    overflowCounts.get(OverflowPolicy.COALESCE).increment();
+                } else {
+                    rejectEvent(event, OverflowPolicy.COALESCE);
+                }
+                break;
+            case DROP_NEWEST:
+            case REJECT:
+            default:
+                rejectEvent(event, overflowPolicy);
+                break;
+        }
+    }
+
+    /**
+     * Replace the first queued event with the same key as the given event.
+     * This walks the queue, which is acceptable as it only happens once the
+     * queue is full.
+     */
+    private boolean coalesce(Partition partition, Event event)
+            throws InterruptedException {
+        BlockingQueue<Event> queue = partition.queue;
+        Object key = overflowKeyExtractor.getKey(QueuedEvent.unwrap(event));
+        for (Event queued : queue) {
+            Event queuedEvent = QueuedEvent.unwrap(queued);
+            if (queuedEvent instanceof ControlEvent) {
+                continue;
+            }
+            if (Objects.equals(key, overflowKeyExtractor.getKey(queuedEvent))) {
+                if (!queue.remove(queued)) {
+                    return false;
+                }
+                countDequeued(queued);
+                coalescing.forget(queuedEvent, OverflowPolicy.COALESCE);
+                // Another producer may take the freed slot, wait for the
+                // consumer for a bounded time in that case.
+                return queue.offer(event)
+                        || queue.offer(event, overflowBlockTimeout, TimeUnit.MILLISECONDS);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Discard an event that was counted as pending but is not in the queue
+     * (anymore).
+     */
+    private void rejectEvent(Event queued, OverflowPolicy policy) {
+        countDequeued(queued);
+        Event event = QueuedEvent.unwrap(queued);
+        overflowCounts.get(policy).increment();
+        LOG.debug("Event queue is full, {} discarded {}", policy, event);
+        notifyRejected(event, policy);
+        coalescing.forget(event, policy);
+        recycle(event);
+    }
+
+    void notifyRejected(Event event, OverflowPolicy policy) {
+        RejectedEventHandler handler = rejectedEventHandler;
+        if (handler != null) {
+            try {
+                handler.rejected(event, policy);
+            } catch (Throwable t) {
+                LOG.warn("Error in rejected event handler", t);
+            }
+        }
+    }
+
+    /**
+     * Event queued by the dispatcher's owner through
+     * {@link #enqueueControlEvent(ControlEvent)} rather than by producers.
+     */
+    interface ControlEvent<T extends Enum<T>> extends Event<T> {
+    }
+
+    /**
+     * Multiplexing an event. Sending it to different handlers that
+     * are interested in the event.
+     */
+    static class MultiListenerHandler implements EventHandler<Event> {
+        // Never modified, adding or removing a handler creates a new instance.
+        final EventHandler<Event>[] handlers;
+
+        MultiListenerHandler(EventHandler<Event>[] handlers) {
+            this.handlers = handlers;
+        }
+
+        @Override
+        public void handle(Event event) {
+            EventHandler<Event>[] current = handlers;
+            for (int i = 0; i < current.length; i++) {
+                current[i].handle(event);
+            }
+        }
+
+        MultiListenerHandler withHandler(EventHandler<Event> handler) {
+            EventHandler<Event>[] copy = Arrays.copyOf(handlers, handlers.length + 1);
+            copy[handlers.length] = handler;
+            return new MultiListenerHandler(copy);
+        }
+
+        /**
+         * @return a handler for the remaining listeners, or this handler if
+         * the given one is not among them
+         */
+        @SuppressWarnings("unchecked")
+        EventHandler<Event> withoutHandler(EventHandler<Event> handler) {
+            for (int i = 0; i < handlers.length; i++) {
+                if (handlers[i] == handler) {
+                    if (handlers.length == 2) {
+                        return handlers[1 - i];
+                    }
+                    EventHandler<Event>[] copy = new EventHandler[handlers.length - 1];
+                    System.arraycopy(handlers, 0, copy, 0, i);
+                    System.arraycopy(handlers, i + 1, copy, i, handlers.length - i - 1);
+                    return new MultiListenerHandler(copy);
+                }
+            }
+            return this;
+        }
+
+    }
+
+    /**
+     * An event queue and the thread draining it.
+     */
+    private static final class Partition {
+        final BlockingQueue<Event> queue;
+        final int capacity;
+        // Remaining capacity below which producers warn, a tenth of the
+        // capacity up to 1000.
+        final int lowCapacityThreshold;
+        // Cleared by producers before enqueueing and set by the partition
+        // thread when it finds its queue empty between two dispatches.
+        volatile boolean idle = true;
+        // Set by the partition thread while it waits for an event.
+        volatile boolean waiting;
+        Thread thread;
+        // Type of the event being dispatched, since when, its budget and the
+        // sequence number of the dispatch, published for the watchdog, and
+        // the sequence number of the last dispatch the watchdog flagged. The
+        // event itself is not kept, as a pooled event may be recycled, and
+        // reused, before the dispatch is over.
+        volatile Enum dispatchingType;
+        volatile long dispatchStart;
+        volatile long dispatchBudget;
+        volatile long dispatchSequence;
+        long flaggedSequence;
+
+        Partition(BlockingQueue<Event> queue) {
+            this.queue = queue;
+            int size = queue.size();
+            long capacity = (long) queue.remainingCapacity() + size;
+            this.capacity = (int) Math.min(capacity, Integer.MAX_VALUE);
+            this.lowCapacityThreshold = Math.max(1, Math.min(1000, this.capacity / 10));
+        }
+    }
+
+    public void disableExitOnDispatchException() {
+        exitOnDispatchException = false;
+    }
+
+    /**
+     * @return whether the event thread of the first partition is waiting for
+     * an event, whichever the wait strategy
+     */
     protected boolean isEventThreadWaiting() {
-        return eventHandlingThread.getState() == Thread.State.WAITING;
+        return partitions[0].waiting;
     }
 
 }
@@ -0,0 +1,42 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Handler that completes its work asynchronously. The dispatcher counts an
+ * event as in flight until the returned stage completes, so draining on stop
+ * waits for it, and failed stages are treated like handler exceptions.
+ * <p>
+ * Registered with
+ * {@link AsyncEventDispatcher#registerAsync(Class, AsyncEventHandler, int)},
+ * which bounds the number of incomplete events per registration.
+ */
+public interface AsyncEventHandler<T extends Event> {
+
+    /**
+     * Start handling the event. Called on the dispatching thread, which
+     * should not block here.
+     *
+     * @param event event to handle
+     * @return stage completing when the event is handled, null if it already is
+     */
+    CompletionStage<Void> handleAsync(T event);
+}
@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Calls an {@link AsyncEventHandler} for a dispatcher and tracks the stages
+ * it returns, keeping their events in flight until they complete.
+ */
+final class AsyncHandlerAdapter implements EventHandler<Event> {
+
+    private final AsyncEventDispatcher dispatcher;
+    private final AsyncEventHandler<Event> handler;
+    private final Semaphore permits;
+
+    AsyncHandlerAdapter(AsyncEventDispatcher dispatcher, AsyncEventHandler<Event> handler,
+                        int maxInFlight) {
+        this.dispatcher = dispatcher;
+        this.handler = handler;
+        this.permits = new Semaphore(maxInFlight);
+    }
+
+    @Override
+    public void handle(Event event) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException ie) {
+            // Stopping, the event is not handled.
+            Thread.currentThread().interrupt();
+            return;
+        }
+        dispatcher.addAsyncInFlight(1);
+        AsyncEventDispatcher.retain(event);
+        JournalAcks.Ack ack = dispatcher.holdJournalAck();
+        CompletionStage<Void> stage;
+        try {
+            stage = handler.handleAsync(event);
+        } catch (Throwable t) {
+            complete(event, ack);
+            throw t;
+        }
+        if (stage == null) {
+            complete(event, ack);
+            return;
+        }
+        stage.whenComplete((result, t) -> {
+            complete(event, ack);
+            if (t != null) {
+                dispatcher.handleDispatchError(t);
+            }
+        });
+    }
+
+    private void complete(Event event, JournalAcks.Ack ack) {
+        if (ack != null) {
+            ack.release();
+        }
+        AsyncEventDispatcher.recycle(event);
+        permits.release();
+        dispatcher.addAsyncInFlight(-1);
+    }
+}
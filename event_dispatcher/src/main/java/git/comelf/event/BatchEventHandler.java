@@ -0,0 +1,42 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+import java.util.List;
+
+/**
+ * Handler taking events in batches, for consumers that do their work more
+ * efficiently in bulk, such as database writers. The dispatcher collects the
+ * events of the registered class and hands them over once the batch is full
+ * or the first of them has waited for the linger time, whichever comes first.
+ * <p>
+ * Registered with
+ * {@link AsyncEventDispatcher#registerBatch(Class, BatchEventHandler, int, long)}.
+ * Batches are delivered one at a time, in dispatch order, either on the event
+ * thread filling the batch or on the dispatcher's linger timer thread.
+ */
+public interface BatchEventHandler<T extends Event> {
+
+    /**
+     * Handle a batch of events.
+     *
+     * @param events events in dispatch order, not to be modified or kept
+     */
+    void handleBatch(List<T> events);
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+import git.comelf.event.metrics.EventTypeMetrics;
+import git.comelf.event.util.TimeUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the events a dispatcher dispatches to a {@link BatchEventHandler}
+ * and hands them over in batches, once a batch is full or its first event
+ * has lingered long enough. Collected events are in flight until their
+ * batch is handled.
+ */
+final class BatchHandlerAdapter implements EventHandler<Event> {
+
+    private final AsyncEventDispatcher dispatcher;
+    private final Class<? extends Enum> eventType;
+    private final BatchEventHandler<Event> handler;
+    private final int maxBatchSize;
+    private final long lingerTime;
+    private final ScheduledExecutorService lingerExecutor;
+    // Held while a batch is taken and handled, so batches do not overlap.
+    private final Object flushLock = new Object();
+    // All guarded by this. The generation counts the batches taken, so a
+    // linger timeout knows whether its batch is still being collected.
+    private List<Event> batch;
+    // Journal records of the events in the batch, if journaled.
+    private List<JournalAcks.Ack> batchAcks;
+    private long generation;
+
+    BatchHandlerAdapter(AsyncEventDispatcher dispatcher, Class<? extends Enum> eventType,
+                        BatchEventHandler<Event> handler, int maxBatchSize, long lingerTime,
+                        ScheduledExecutorService lingerExecutor) {
+        this.dispatcher = dispatcher;
+        this.eventType = eventType;
+        this.handler = handler;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerTime = lingerTime;
+        this.lingerExecutor = lingerExecutor;
+    }
+
+    @Override
+    public void handle(Event event) {
+        boolean full;
+        long started = -1;
+        synchronized (this) {
+            if (batch == null) {
+                batch = new ArrayList<>(Math.min(maxBatchSize, 1024));
+                started = generation;
+            }
+            batch.add(event);
+            AsyncEventDispatcher.retain(event);
+            JournalAcks.Ack ack = dispatcher.holdJournalAck();
+            if (ack != null) {
+                if (batchAcks == null) {
+                    batchAcks = new ArrayList<>();
+                }
+                batchAcks.add(ack);
+            }
+            dispatcher.addAsyncInFlight(1);
+            full = batch.size() >= maxBatchSize;
+        }
+        if (full) {
+            flush(-1);
+        } else if (started >= 0) {
+            final long lingering = started;
+            try {
+                lingerExecutor.schedule(() -> {
+                    try {
+                        flush(lingering);
+                    } catch (Throwable t) {
+                        dispatcher.handleDispatchError(t);
+                    }
+                }, lingerTime, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Stopping, the batch is flushed by serviceStop.
+            }
+        }
+    }
+
+    /**
+     * Hand the collected events to the handler.
+     *
+     * @param expectedGeneration generation of the batch to flush, or -1
+     *                           for whatever is collected
+     */
+    void flush(long expectedGeneration) {
+        synchronized (flushLock) {
+            List<Event> events;
+            List<JournalAcks.Ack> acks;
+            synchronized (this) {
+                if (batch == null
+                        || (expectedGeneration >= 0 && expectedGeneration != generation)) {
+                    return;
+                }
+                events = batch;
+                acks = batchAcks;
+                batch = null;
+                batchAcks = null;
+                generation++;
+            }
+            try {
+                long startTime = TimeUtil.monotonicNowNanos();
+                handler.handleBatch(Collections.unmodifiableList(events));
+                EventTypeMetrics metrics = dispatcher.getMetrics(eventType);
+                if (metrics != null) {
+                    metrics.recordBatch(events.size(),
+                            TimeUtil.monotonicNowNanos() - startTime);
+                }
+            } finally {
+                if (acks != null) {
+                    for (int i = 0, n = acks.size(); i < n; i++) {
+                        acks.get(i).release();
+                    }
+                }
+                for (int i = 0, n = events.size(); i < n; i++) {
+                    AsyncEventDispatcher.recycle(events.get(i));
+                }
+                dispatcher.addAsyncInFlight(-events.size());
+            }
+        }
+    }
+}
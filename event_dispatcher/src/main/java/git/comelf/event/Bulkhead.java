@@ -0,0 +1,251 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+import git.comelf.event.util.TimeUtil;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded executor isolating the handlers of one event class from the rest
+ * of the dispatcher. At most {@link #getMaxConcurrency()} events of the class
+ * are handled at once and at most {@link #getMaxQueueSize()} more wait; the
+ * dispatcher rejects events beyond that instead of waiting, and handler
+ * failures are counted and logged instead of stopping the dispatcher.
+ * <p>
+ * Created by {@link AsyncEventDispatcher#setBulkhead(Class, int, int)}. The
+ * counters tell how close the bulkhead runs to its limits. With
+ * {@link git.comelf.conf.Configuration#DISPATCHER_WATCHDOG_INTERRUPT_ISOLATED}
+ * set, the dispatcher watchdog interrupts handlers running past their
+ * budget.
+ */
+public class Bulkhead {
+
+    private final String name;
+    private final int maxConcurrency;
+    private final int maxQueueSize;
+    private final ThreadPoolExecutor executor;
+
+    // Events accepted and not finished yet, running or waiting.
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder saturated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    // Handler calls in progress, for the watchdog.
+    private final Set<RunningTask> running = ConcurrentHashMap.newKeySet();
+
+    private static final class RunningTask {
+        final Thread thread = Thread.currentThread();
+        final long startTime = TimeUtil.monotonicNowNanos();
+        // Guarded by this, so a thread is never interrupted once its task
+        // is done.
+        private boolean done;
+        private boolean interrupted;
+
+        synchronized boolean interrupt(LongAdder counter) {
+            if (done || interrupted) {
+                return false;
+            }
+            interrupted = true;
+            // Counted first, so the count is up to date once the handler
+            // sees the interrupt.
+            counter.increment();
+            thread.interrupt();
+            return true;
+        }
+
+        synchronized void finish() {
+            done = true;
+            if (interrupted) {
+                // Do not leave the interrupt to the next task of the thread.
+                Thread.interrupted();
+            }
+        }
+    }
+
+    Bulkhead(String name, int maxConcurrency, int maxQueueSize) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Invalid maxConcurrency " + maxConcurrency
+                    + " for bulkhead " + name);
+        }
+        if (maxQueueSize < 0) {
+            throw new IllegalArgumentException("Invalid maxQueueSize " + maxQueueSize
+                    + " for bulkhead " + name);
+        }
+        this.name = name;
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueueSize = maxQueueSize;
+        BlockingQueue<Runnable> queue = maxQueueSize == 0
+                ? new SynchronousQueue<Runnable>() : new ArrayBlockingQueue<Runnable>(maxQueueSize);
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency,
+                60, TimeUnit.SECONDS, queue, runnable -> {
+            Thread thread = new Thread(runnable, name + " #" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run the task unless the bulkhead is full.
+     *
+     * @return whether the task was accepted
+     */
+    boolean tryExecute(final Runnable task) {
+        int current = inFlight.incrementAndGet();
+        if (current > maxConcurrency) {
+            saturated.increment();
+        }
+        try {
+            executor.execute(() -> {
+                RunningTask runningTask = new RunningTask();
+                running.add(runningTask);
+                try {
+                    task.run();
+                } finally {
+                    running.remove(runningTask);
+                    runningTask.finish();
+                    inFlight.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        accepted.increment();
+        peakInFlight.accumulateAndGet(current, Math::max);
+        return true;
+    }
+
+    void recordFailure() {
+        failed.increment();
+    }
+
+    /**
+     * Interrupt handlers that have been running for longer than the given
+     * budget, each once.
+     *
+     * @return threads interrupted
+     */
+    int interruptOverdue(long budgetNanos) {
+        long now = TimeUtil.monotonicNowNanos();
+        int interrupted = 0;
+        for (RunningTask task : running) {
+            if (now - task.startTime > budgetNanos && task.interrupt(timedOut)) {
+                interrupted++;
+            }
+        }
+        return interrupted;
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    /**
+     * @return number of events being handled or waiting for a thread
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return highest number of events in flight at once
+     */
+    public int getPeakInFlightCount() {
+        return peakInFlight.get();
+    }
+
+    /**
+     * @return whether every thread is busy and the queue is full, so the
+     * next event would be rejected
+     */
+    public boolean isSaturated() {
+        return inFlight.get() >= maxConcurrency + maxQueueSize;
+    }
+
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    /**
+     * @return number of events that found every thread busy and had to wait
+     * or were rejected
+     */
+    public long getSaturatedCount() {
+        return saturated.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return number of events whose handler threw
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return number of handler calls the watchdog interrupted for running
+     * past their budget
+     */
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "Bulkhead " + name + ": inFlight=" + getInFlightCount()
+                + "/" + (maxConcurrency + maxQueueSize)
+                + ", peak=" + getPeakInFlightCount()
+                + ", accepted=" + getAcceptedCount()
+                + ", saturated=" + getSaturatedCount()
+                + ", rejected=" + getRejectedCount()
+                + ", failed=" + getFailedCount()
+                + ", timedOut=" + getTimedOutCount();
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+/**
+ * How the events of an event class are dispatched once they are taken off
+ * the queue.
+ */
+public enum DispatchMode {
+
+    /**
+     * On the event thread, one at a time in queue order. The default.
+     */
+    ORDERED,
+
+    /**
+     * On a work-stealing pool, concurrently with other events. For event
+     * classes whose handlers neither care about order nor share unguarded
+     * state.
+     */
+    UNORDERED,
+
+    /**
+     * Each event on its own virtual thread, for handlers that block on I/O.
+     * Without virtual threads (before JDK 21) a bounded pool of platform
+     * threads is used instead. Events run concurrently and in no particular
+     * order.
+     */
+    BLOCKING,
+
+    /**
+     * Like {@link #BLOCKING}, but events with equal partition keys (see
+     * {@link AsyncEventDispatcher#setPartitionKeyExtractor}) run one at a
+     * time in queue order.
+     */
+    BLOCKING_KEYED
+}
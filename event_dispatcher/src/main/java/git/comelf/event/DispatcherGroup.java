@@ -0,0 +1,500 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+import git.comelf.conf.Configuration;
+import git.comelf.event.metrics.EventTypeMetrics;
+import git.comelf.event.service.AbstractService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A group of {@link AsyncEventDispatcher}s behind one event handler. Events
+ * are routed by consistent hashing of a key extracted from them, so events
+ * with equal keys always reach the same member and keep their order.
+ * <p>
+ * Handlers and metrics are registered with every member; metrics instances
+ * are shared, so they should tolerate updates from several threads. Each
+ * member runs a single event thread, {@link Configuration#DISPATCHER_PARTITIONS}
+ * is ignored for them. Members cannot use priority lanes, as the barriers of
+ * a resize would be served with the lowest priority events instead of after
+ * everything queued before them.
+ * <p>
+ * The group can be resized while running. Keys that move to another member
+ * are held back until the member they move from has dispatched everything
+ * queued before the resize; events for other keys keep flowing.
+ */
+public class DispatcherGroup extends AbstractService implements Dispatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DispatcherGroup.class);
+
+    private final String groupName;
+    private final EventKeyExtractor keyExtractor;
+    private final EventHandler<Event> handlerInstance = new GroupEventHandler();
+
+    // Producers route under the read lock, a resize swaps the ring under the
+    // write lock so that no event is routed with the old ring once the
+    // barriers are queued.
+    private final ReentrantReadWriteLock routingLock = new ReentrantReadWriteLock();
+    private volatile Ring ring;
+
+    // Registrations so far, replayed on dispatchers added by a resize.
+    private final List<Object[]> handlers = new ArrayList<>();
+    private final List<Object[]> metrics = new ArrayList<>();
+    private final Object registrationLock = new Object();
+    private final Object resizeLock = new Object();
+
+    private int virtualNodes;
+    private long drainTimeout;
+    private int nextMemberId;
+    // Member settings, applied to dispatchers added by a resize as well.
+    private boolean drainEventsOnStop;
+    private boolean exitOnDispatchException = true;
+
+    /**
+     * @param name         name of the group, members are named after it
+     * @param keyExtractor extracts the routing key of an event
+     */
+    public DispatcherGroup(String name, EventKeyExtractor keyExtractor) {
+        super("DispatcherGroup");
+        this.groupName = name;
+        this.keyExtractor = Objects.requireNonNull(keyExtractor);
+    }
+
+    @Override
+    protected void serviceInit(Configuration conf) throws Exception {
+        super.serviceInit(conf);
+        int size = conf.getInt(Configuration.DISPATCHER_GROUP_SIZE,
+                Configuration.DEFAULT_DISPATCHER_GROUP_SIZE);
+        checkSize(size);
+        virtualNodes = conf.getInt(Configuration.DISPATCHER_GROUP_VIRTUAL_NODES,
+                Configuration.DEFAULT_DISPATCHER_GROUP_VIRTUAL_NODES);
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException(Configuration.DISPATCHER_GROUP_VIRTUAL_NODES
+                    + " should be at least 1, but was " + virtualNodes);
+        }
+        drainTimeout = conf.getLong(Configuration.DISPATCHER_DRAIN_EVENTS_TIMEOUT,
+                Configuration.DEFAULT_DISPATCHER_DRAIN_EVENTS_TIMEOUT);
+        Member[] members = new Member[size];
+        for (int i = 0; i < size; i++) {
+            members[i] = addMember();
+        }
+        ring = new Ring(members, virtualNodes, null);
+    }
+
+    @Override
+    protected void serviceStart() throws Exception {
+        super.serviceStart();
+        for (Member member : ring.members) {
+            member.dispatcher.start();
+        }
+    }
+
+    @Override
+    protected void serviceStop() throws Exception {
+        Ring current = ring;
+        if (current != null) {
+            for (Member member : current.members) {
+                member.dispatcher.stop();
+            }
+        }
+        super.serviceStop();
+    }
+
+    /**
+     * Create a member dispatcher. Subclasses may return a customized
+     * dispatcher; it is configured and started by the group.
+     *
+     * @param name name for the dispatcher thread
+     * @return a new, uninitialized dispatcher
+     */
+    protected AsyncEventDispatcher createDispatcher(String name) {
+        return new AsyncEventDispatcher(name);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Member addMember() {
+        int id = nextMemberId++;
+        AsyncEventDispatcher dispatcher = createDispatcher(groupName + " #" + id);
+        Member member = new Member(id, dispatcher);
+        dispatcher.register(BarrierType.class, (EventHandler<BarrierEvent>) event -> event.done.countDown());
+        synchronized (registrationLock) {
+            if (drainEventsOnStop) {
+                dispatcher.setDrainEventsOnStop();
+            }
+            if (!exitOnDispatchException) {
+                dispatcher.disableExitOnDispatchException();
+            }
+            for (Object[] registration : handlers) {
+                dispatcher.register((Class<? extends Enum>) registration[0],
+                        (EventHandler) registration[1]);
+            }
+            for (Object[] registration : metrics) {
+                dispatcher.addMetrics((EventTypeMetrics) registration[0],
+                        (Class<? extends Enum>) registration[1]);
+            }
+        }
+        Configuration conf = new Configuration(getConfig());
+        conf.setInt(Configuration.DISPATCHER_PARTITIONS, 1);
+        dispatcher.init(conf);
+        // Resizing relies on barriers queued behind everything else.
+        dispatcher.checkControlEvents();
+        return member;
+    }
+
+    @Override
+    public EventHandler<Event> getEventHandler() {
+        return handlerInstance;
+    }
+
+    @Override
+    public void register(Class<? extends Enum> eventType, EventHandler handler) {
+        synchronized (registrationLock) {
+            handlers.add(new Object[]{eventType, handler});
+            Ring current = ring;
+            if (current != null) {
+                for (Member member : current.members) {
+                    member.dispatcher.register(eventType, handler);
+                }
+            }
+        }
+    }
+
+    public void addMetrics(EventTypeMetrics eventTypeMetrics, Class<? extends Enum> eventClass) {
+        synchronized (registrationLock) {
+            metrics.add(new Object[]{eventTypeMetrics, eventClass});
+            Ring current = ring;
+            if (current != null) {
+                for (Member member : current.members) {
+                    member.dispatcher.addMetrics(eventTypeMetrics, eventClass);
+                }
+            }
+        }
+    }
+
+    /**
+     * Let every member dispatch its queued events before it stops.
+     *
+     * @see AsyncEventDispatcher#setDrainEventsOnStop()
+     */
+    public void setDrainEventsOnStop() {
+        synchronized (registrationLock) {
+            drainEventsOnStop = true;
+            Ring current = ring;
+            if (current != null) {
+                for (Member member : current.members) {
+                    member.dispatcher.setDrainEventsOnStop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Keep the process running when a member fails to dispatch an event.
+     *
+     * @see AsyncEventDispatcher#disableExitOnDispatchException()
+     */
+    public void disableExitOnDispatchException() {
+        synchronized (registrationLock) {
+            exitOnDispatchException = false;
+            Ring current = ring;
+            if (current != null) {
+                for (Member member : current.members) {
+                    member.dispatcher.disableExitOnDispatchException();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of dispatchers in the group
+     */
+    public int getSize() {
+        return ring.members.length;
+    }
+
+    /**
+     * @return the dispatchers of the group, in ring order of their creation
+     */
+    public List<AsyncEventDispatcher> getDispatchers() {
+        Member[] members = ring.members;
+        List<AsyncEventDispatcher> dispatchers = new ArrayList<>(members.length);
+        for (Member member : members) {
+            dispatchers.add(member.dispatcher);
+        }
+        return dispatchers;
+    }
+
+    /**
+     * @return the dispatcher events with the given key are routed to
+     */
+    public AsyncEventDispatcher getDispatcher(Object key) {
+        return ring.route(key).dispatcher;
+    }
+
+    public int getEventQueueSize() {
+        int size = 0;
+        for (Member member : ring.members) {
+            size += member.dispatcher.getEventQueueSize();
+        }
+        return size;
+    }
+
+    /**
+     * Change the number of dispatchers. Growing adds dispatchers, shrinking
+     * removes the most recently added ones. Keys only move to or from the
+     * added or removed dispatchers. Events for moved keys wait until every
+     * event queued before the resize on their previous dispatcher has been
+     * dispatched, or until {@link Configuration#DISPATCHER_DRAIN_EVENTS_TIMEOUT}
+     * passes, after which their order is no longer guaranteed. Events for
+     * moved keys emitted by handlers running on a previous dispatcher do not
+     * wait, they are queued on that dispatcher instead.
+     *
+     * @param size new number of dispatchers
+     * @throws InterruptedException if interrupted while waiting for the drain
+     */
+    public void resize(int size) throws InterruptedException {
+        checkSize(size);
+        synchronized (resizeLock) {
+            Ring current = ring;
+            if (current == null) {
+                throw new IllegalStateException(groupName + " is not initialized");
+            }
+            Member[] members = Arrays.copyOf(current.members, size);
+            for (int i = current.members.length; i < size; i++) {
+                members[i] = addMember();
+                if (isInState(STATE.STARTED)) {
+                    members[i].dispatcher.start();
+                }
+            }
+            Ring next = new Ring(members, virtualNodes, current);
+            if (!isInState(STATE.STARTED)) {
+                // Nothing is dispatched yet, so nothing can be overtaken.
+                ring = new Ring(members, next.points, next.owners, null);
+                for (int i = size; i < current.members.length; i++) {
+                    current.members[i].dispatcher.stop();
+                }
+                return;
+            }
+
+            // Once the write lock is released, no producer routes with the old
+            // ring anymore, and everything it routed is queued. The barriers
+            // are queued after that, so once they are all through no event of
+            // a moved key is still waiting behind the move. They are queued
+            // without the lock: a full queue only drains if its handlers can
+            // emit through the group. Barriers bypass the overflow policy, so
+            // none of them can be dropped.
+            routingLock.writeLock().lock();
+            try {
+                ring = next;
+            } finally {
+                routingLock.writeLock().unlock();
+            }
+            CountDownLatch barriers = new CountDownLatch(current.members.length);
+            try {
+                for (Member member : current.members) {
+                    member.dispatcher.enqueueControlEvent(new BarrierEvent(barriers));
+                }
+            } catch (InterruptedException e) {
+                ring = new Ring(members, next.points, next.owners, null);
+                next.settled.countDown();
+                throw e;
+            }
+            try {
+                if (!barriers.await(drainTimeout, TimeUnit.MILLISECONDS)) {
+                    LOG.warn("Timed out waiting for " + groupName
+                            + " to drain moved keys, resuming them anyway");
+                }
+            } finally {
+                ring = new Ring(members, next.points, next.owners, null);
+                next.settled.countDown();
+            }
+
+            for (int i = size; i < current.members.length; i++) {
+                current.members[i].dispatcher.stop();
+            }
+            LOG.info("Resized " + groupName + " from " + current.members.length
+                    + " to " + size + " dispatchers");
+        }
+    }
+
+    private static void checkSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException(Configuration.DISPATCHER_GROUP_SIZE
+                    + " should be at least 1, but was " + size);
+        }
+    }
+
+    class GroupEventHandler implements EventHandler<Event> {
+        @Override
+        public void handle(Event event) {
+            Object key = keyExtractor.getKey(event);
+            while (true) {
+                Ring current;
+                routingLock.readLock().lock();
+                try {
+                    current = ring;
+                    if (current.previous == null || current.settled.getCount() == 0
+                            || current.route(key) == current.previous.route(key)) {
+                        current.route(key).dispatcher.getEventHandler().handle(event);
+                        return;
+                    }
+                    if (isMemberThread(current.previous)) {
+                        // A handler of an old member cannot wait for the
+                        // barriers, its own member's is queued behind it. The
+                        // event stays with the old dispatcher of its key.
+                        current.previous.route(key).dispatcher.getEventHandler().handle(event);
+                        return;
+                    }
+                } finally {
+                    routingLock.readLock().unlock();
+                }
+                // The key is moving, wait for its old dispatcher to catch up.
+                try {
+                    current.settled.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    private static boolean isMemberThread(Ring ring) {
+        for (Member member : ring.members) {
+            if (member.dispatcher.isEventThread()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Member {
+        final int id;
+        final AsyncEventDispatcher dispatcher;
+
+        Member(int id, AsyncEventDispatcher dispatcher) {
+            this.id = id;
+            this.dispatcher = dispatcher;
+        }
+    }
+
+    /**
+     * Immutable consistent hash ring. Each member owns {@code virtualNodes}
+     * points derived from its id, so a member keeps its points across
+     * resizes.
+     */
+    private static final class Ring {
+        final Member[] members;
+        final long[] points;
+        final Member[] owners;
+        // Ring before the resize in progress, null once keys have settled.
+        final Ring previous;
+        final CountDownLatch settled = new CountDownLatch(1);
+
+        Ring(Member[] members, int virtualNodes, Ring previous) {
+            this.members = members;
+            this.previous = previous;
+            long[][] entries = new long[members.length * virtualNodes][];
+            for (int m = 0; m < members.length; m++) {
+                for (int v = 0; v < virtualNodes; v++) {
+                    // The id is offset so that no point is derived from a
+                    // value an int key hash can take, which would pin such
+                    // keys to the first member.
+                    entries[m * virtualNodes + v] = new long[]{
+                            mix(((long) (members[m].id + 1) << 32) | v), m};
+                }
+            }
+            Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+            this.points = new long[entries.length];
+            this.owners = new Member[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                points[i] = entries[i][0];
+                owners[i] = members[(int) entries[i][1]];
+            }
+        }
+
+        Ring(Member[] members, long[] points, Member[] owners, Ring previous) {
+            this.members = members;
+            this.points = points;
+            this.owners = owners;
+            this.previous = previous;
+        }
+
+        /**
+         * @return owner of the first point at or after the hash of the key
+         */
+        Member route(Object key) {
+            long hash = mix(Objects.hashCode(key));
+            int index = Arrays.binarySearch(points, hash);
+            if (index < 0) {
+                index = -index - 1;
+                if (index == points.length) {
+                    index = 0;
+                }
+            }
+            return owners[index];
+        }
+
+        // Finalizer of MurmurHash3, spreads keys and ring points evenly.
+        static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb93e53c9e0bbL;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    private enum BarrierType {
+        BARRIER
+    }
+
+    /**
+     * Queued on a member during a resize; dispatched once everything queued
+     * before it on that member has been.
+     */
+    private static final class BarrierEvent
+            implements AsyncEventDispatcher.ControlEvent<BarrierType> {
+        final CountDownLatch done;
+
+        BarrierEvent(CountDownLatch done) {
+            this.done = done;
+        }
+
+        @Override
+        public BarrierType getType() {
+            return BarrierType.BARRIER;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+/**
+ * Collapses events that are still waiting in the dispatcher queue. While an
+ * event with a given coalescing key is queued, newer events with the same
+ * key are merged into it instead of being queued themselves; the merged
+ * event is dispatched at the queue position of the first one.
+ * <p>
+ * Coalescers are set per event class with
+ * {@link AsyncEventDispatcher#setCoalescer(Class, EventCoalescer)}, or
+ * declared by a handler implementing this interface.
+ */
+public interface EventCoalescer {
+
+    /**
+     * @param event event about to be queued
+     * @return the coalescing key of the event, or null if the event should
+     * never be coalesced
+     */
+    Object getCoalescingKey(Event event);
+
+    /**
+     * Merge a queued event with a newer event with the same key. By default
+     * the newer event replaces the queued one.
+     *
+     * @param pending the event currently waiting in the queue
+     * @param newer   the event being added
+     * @return the event to dispatch in place of both
+     */
+    default Event merge(Event pending, Event newer) {
+        return newer;
+    }
+
+}
@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+import git.comelf.event.journal.EventJournal;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalescing stages of a dispatcher, one per event class with an
+ * {@link EventCoalescer}. While an event with a given key is queued, its
+ * stage keeps the latest event with that key, which newer events are merged
+ * into instead of being queued. The event thread dispatches the latest event
+ * in place of the queued one.
+ */
+final class EventCoalescing {
+
+    private final AsyncEventDispatcher dispatcher;
+    private final Map<Class<? extends Enum>, Stage> stages = new ConcurrentHashMap<>();
+    private volatile boolean enabled = false;
+    private final LongAdder coalesced = new LongAdder();
+
+    private static final class Stage {
+        final EventCoalescer coalescer;
+        // Latest (merged) event per key, while an event with that key is queued.
+        final ConcurrentHashMap<Object, Event> pending = new ConcurrentHashMap<>();
+
+        Stage(EventCoalescer coalescer) {
+            this.coalescer = coalescer;
+        }
+    }
+
+    EventCoalescing(AsyncEventDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    void setCoalescer(Class<? extends Enum> eventType, EventCoalescer coalescer) {
+        stages.put(eventType, new Stage(Objects.requireNonNull(coalescer)));
+        enabled = true;
+    }
+
+    /**
+     * @return whether any event class has a coalescer
+     */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Merge the event into a queued event with the same coalescing key. With
+     * a journal, the merged event is journaled as well, so a replay ends with
+     * the latest state; it is kept in an envelope carrying its sequence,
+     * which the dispatcher acknowledges instead of the queued event's.
+     *
+     * @param journaled journal sequence of a replayed event, -1 for a new one
+     * @return true if the event was merged, false if it needs to be queued
+     */
+    boolean coalescePending(Event event, long journaled) {
+        Stage stage = stages.get(event.getType().getDeclaringClass());
+        if (stage == null) {
+            return false;
+        }
+        Object key = stage.coalescer.getCoalescingKey(event);
+        if (key == null) {
+            return false;
+        }
+        EventJournal journal = dispatcher.getJournal();
+        while (true) {
+            Event pending = stage.pending.putIfAbsent(key, event);
+            if (pending == null) {
+                return false;
+            }
+            Event merged = stage.coalescer.merge(QueuedEvent.unwrap(pending), event);
+            long sequence = -1;
+            if (merged == event && journaled >= 0) {
+                merged = new QueuedEvent(merged, -1, journaled);
+            } else if (journal != null) {
+                sequence = dispatcher.appendToJournal(merged);
+                merged = new QueuedEvent(merged, -1, sequence);
+            }
+            // Fails if the dispatcher thread took the pending event meanwhile,
+            // in which case this event becomes the pending one.
+            if (stage.pending.replace(key, pending, merged)) {
+                coalesced.increment();
+                ackSuperseded(pending);
+                if (sequence >= 0 && journaled >= 0) {
+                    journal.ack(journaled);
+                }
+                return true;
+            }
+            if (sequence >= 0) {
+                journal.ack(sequence);
+            }
+        }
+    }
+
+    /**
+     * Acknowledge the journal record of a merged event that is no longer
+     * going to be dispatched.
+     */
+    private void ackSuperseded(Event pending) {
+        if (pending instanceof QueuedEvent) {
+            dispatcher.getJournal().ack(((QueuedEvent) pending).journalSequence);
+        }
+    }
+
+    /**
+     * Called by the dispatcher thread for a dequeued event, returns the event
+     * it was coalesced into, if any, in its envelope if journaled.
+     */
+    Event takeCoalesced(Event event) {
+        Stage stage = stages.get(event.getType().getDeclaringClass());
+        if (stage == null) {
+            return event;
+        }
+        Object key = stage.coalescer.getCoalescingKey(event);
+        if (key == null) {
+            return event;
+        }
+        Event latest = stage.pending.remove(key);
+        return latest == null ? event : latest;
+    }
+
+    /**
+     * Forget the pending event for a queued event that is never going to be
+     * dispatched, so that later events with the same key get queued again.
+     * Events merged into it are lost with it and reported as rejected.
+     *
+     * @param policy reported to the {@link RejectedEventHandler}
+     */
+    void forget(Event event, OverflowPolicy policy) {
+        if (enabled) {
+            Event latest = takeCoalesced(event);
+            if (latest != event) {
+                ackSuperseded(latest);
+                dispatcher.notifyRejected(QueuedEvent.unwrap(latest), policy);
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+/**
+ * Extracts a routing key from an event. Events that map to equal keys are
+ * always routed to the same place and therefore keep their relative order.
+ */
+public interface EventKeyExtractor {
+
+    /**
+     * Routes by the enum class declaring the event type, i.e. the same
+     * granularity used by {@link Dispatcher#register(Class, EventHandler)}.
+     */
+    EventKeyExtractor DECLARING_CLASS = new EventKeyExtractor() {
+        @Override
+        public Object getKey(Event event) {
+            return event.getType().getDeclaringClass();
+        }
+    };
+
+    Object getKey(Event event);
+
+}
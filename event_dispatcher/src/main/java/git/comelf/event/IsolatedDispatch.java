@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+import git.comelf.event.metrics.EventTypeMetrics;
+import git.comelf.event.util.TimeUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatch of one event on the {@link Bulkhead} of its class. Handler
+ * failures are counted by the bulkhead and logged rather than treated as
+ * dispatcher errors. The event is in flight from the time the task is
+ * created.
+ */
+final class IsolatedDispatch implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IsolatedDispatch.class);
+
+    private final AsyncEventDispatcher dispatcher;
+    private final Bulkhead bulkhead;
+    private final Event event;
+    private final EventTypeMetrics metrics;
+    private final long enqueueTime;
+    private final JournalAcks.Ack ack;
+
+    /**
+     * @param ack journal record of the event, or null if it is not journaled
+     */
+    IsolatedDispatch(AsyncEventDispatcher dispatcher, Bulkhead bulkhead, Event event,
+                     EventTypeMetrics metrics, long enqueueTime, JournalAcks.Ack ack) {
+        this.dispatcher = dispatcher;
+        this.bulkhead = bulkhead;
+        this.event = event;
+        this.metrics = metrics;
+        this.enqueueTime = enqueueTime;
+        this.ack = ack;
+    }
+
+    @Override
+    public void run() {
+        JournalAcks.Ack outer = ack != null ? ack.begin() : null;
+        try {
+            long startTime = TimeUtil.monotonicNowNanos();
+            dispatcher.invokeHandler(event);
+            if (metrics != null) {
+                metrics.record(event.getType(), TimeUtil.monotonicNowNanos() - startTime,
+                        enqueueTime < 0 ? -1 : startTime - enqueueTime);
+            }
+        } catch (Throwable t) {
+            bulkhead.recordFailure();
+            LOG.error("Error handling " + event.getType() + " in " + bulkhead.getName(), t);
+        } finally {
+            if (ack != null) {
+                ack.end(outer);
+            }
+            AsyncEventDispatcher.recycle(event);
+            dispatcher.addAsyncInFlight(-1);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+import git.comelf.event.journal.EventJournal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Journal records of the events a dispatcher is dispatching. A record is
+ * acknowledged once the dispatch and every handler holding it are done, like
+ * a pooled event is recycled. Handlers that finish an event after returning
+ * hold the record of the event dispatched on their thread.
+ */
+final class JournalAcks {
+
+    private final EventJournal journal;
+    // Record of the event dispatched on the current thread, for such
+    // handlers to hold.
+    private final ThreadLocal<Ack> dispatching = new ThreadLocal<>();
+
+    JournalAcks(EventJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @param sequence journal sequence of an event about to be dispatched
+     * @return its record, held by the dispatch until {@link Ack#end(Ack)} or
+     * {@link Ack#release()}
+     */
+    Ack track(long sequence) {
+        return new Ack(sequence);
+    }
+
+    /**
+     * Keep the record of the event dispatched on this thread from being
+     * acknowledged until {@link Ack#release()}.
+     *
+     * @return the record held, or null if the event is not journaled
+     */
+    Ack hold() {
+        Ack ack = dispatching.get();
+        if (ack != null) {
+            ack.holds.incrementAndGet();
+        }
+        return ack;
+    }
+
+    final class Ack {
+        private final long sequence;
+        // The dispatch itself holds the record too.
+        private final AtomicInteger holds = new AtomicInteger(1);
+
+        private Ack(long sequence) {
+            this.sequence = sequence;
+        }
+
+        /**
+         * Publish the record as the one of the event dispatched on this
+         * thread.
+         *
+         * @return the record published before, to restore with
+         * {@link #end(Ack)}
+         */
+        Ack begin() {
+            Ack outer = dispatching.get();
+            dispatching.set(this);
+            return outer;
+        }
+
+        /**
+         * Restore the record published before {@link #begin()} and release
+         * the hold of the dispatch.
+         */
+        void end(Ack outer) {
+            dispatching.set(outer);
+            release();
+        }
+
+        void release() {
+            if (holds.decrementAndGet() == 0) {
+                journal.ack(sequence);
+            }
+        }
+    }
+}
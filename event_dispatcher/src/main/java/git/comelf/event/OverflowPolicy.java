@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+/**
+ * What {@link AsyncEventDispatcher} does with a new event when its queue is
+ * full. Only relevant for bounded queues. In configuration the policies are
+ * written in lower case with dashes, e.g. {@code drop-oldest}.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Block the producer until there is room in the queue.
+     */
+    BLOCK,
+
+    /**
+     * Block the producer for at most
+     * {@code dispatcher.overflow-policy.block-timeout} milliseconds, then
+     * reject the event.
+     */
+    BLOCK_WITH_TIMEOUT,
+
+    /**
+     * Discard the new event.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Discard the oldest queued events until the new event fits. With a
+     * PriorityLaneEventQueue they are taken from the lowest priority lane
+     * first. Needs a queue that can be polled by producers, so not a
+     * RingBufferEventQueue.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Replace a queued event that has the same key as the new event, see
+     * {@link AsyncEventDispatcher#setOverflowKeyExtractor(EventKeyExtractor)}.
+     * The new event is rejected when no queued event shares its key. Needs a
+     * queue supporting removal, so not a RingBufferEventQueue.
+     */
+    COALESCE,
+
+    /**
+     * Reject the new event straight away.
+     */
+    REJECT;
+
+    public static OverflowPolicy fromString(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
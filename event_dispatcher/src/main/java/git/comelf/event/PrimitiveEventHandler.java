@@ -0,0 +1,42 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+/**
+ * Handler for events published on a {@link PrimitiveEventLane}, taking the
+ * event fields directly instead of an {@link Event} object, so hot paths
+ * with numeric payloads such as ticks or counters neither allocate nor box.
+ * <p>
+ * Registered with
+ * {@link AsyncEventDispatcher#createPrimitiveLane(Class, PrimitiveEventHandler, int)}.
+ * Events are delivered one at a time, in publishing order, on the lane's own
+ * thread.
+ */
+public interface PrimitiveEventHandler<T extends Enum<T>> {
+
+    /**
+     * Handle an event.
+     *
+     * @param type   event type
+     * @param key    event key, such as an entity id
+     * @param value1 first payload value
+     * @param value2 second payload value
+     */
+    void handle(T type, long key, long value1, long value2);
+}
@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+import git.comelf.event.queue.PrimitiveEventRing;
+
+/**
+ * Lane for events whose payload fits a few longs, bypassing the event queue.
+ * Events are stored field by field in a {@link PrimitiveEventRing} and
+ * handed to a {@link PrimitiveEventHandler} on a thread of the lane's own,
+ * so publishing and handling them creates no objects.
+ * <p>
+ * Created by
+ * {@link AsyncEventDispatcher#createPrimitiveLane(Class, PrimitiveEventHandler, int)}.
+ * Events are handled in the order they were published, but in no particular
+ * order relative to events going through the dispatcher's queue. The lane
+ * is drained with the dispatcher on stop and takes no events after that.
+ */
+public class PrimitiveEventLane<T extends Enum<T>> {
+
+    // Most events handed over per ring drain.
+    static final int DRAIN_BATCH_SIZE = 256;
+
+    private final String name;
+    private final T[] types;
+    private final PrimitiveEventHandler<T> handler;
+    private final PrimitiveEventRing ring;
+    // Created once, so draining does not allocate.
+    private final PrimitiveEventRing.Consumer consumer = this::deliver;
+
+    Thread thread;
+
+    PrimitiveEventLane(String name, Class<T> eventType, PrimitiveEventHandler<T> handler,
+                       int capacity) {
+        this.name = name;
+        this.types = eventType.getEnumConstants();
+        this.handler = handler;
+        this.ring = new PrimitiveEventRing(capacity);
+    }
+
+    /**
+     * Publish an event, waiting while the lane is full.
+     *
+     * @return false if the lane is or gets closed and the event was dropped
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public boolean publish(T type, long key, long value1, long value2)
+            throws InterruptedException {
+        return ring.put(type.ordinal(), key, value1, value2);
+    }
+
+    /**
+     * Publish an event unless the lane is full or closed.
+     *
+     * @return whether the event was published
+     */
+    public boolean tryPublish(T type, long key, long value1, long value2) {
+        return ring.offer(type.ordinal(), key, value1, value2);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapacity() {
+        return ring.capacity();
+    }
+
+    /**
+     * @return number of events published and not handled yet
+     */
+    public int size() {
+        return ring.size();
+    }
+
+    public boolean isClosed() {
+        return ring.isClosed();
+    }
+
+    boolean isEmpty() {
+        return ring.isEmpty();
+    }
+
+    void close() {
+        ring.close();
+    }
+
+    void awaitAvailable() throws InterruptedException {
+        ring.awaitAvailable();
+    }
+
+    /**
+     * Handle the events available, up to {@link #DRAIN_BATCH_SIZE}. A
+     * handler failure propagates, the event it failed on counting as handled.
+     *
+     * @return number of events handled
+     */
+    int dispatchAvailable() {
+        return ring.drainTo(consumer, DRAIN_BATCH_SIZE);
+    }
+
+    private void deliver(int type, long key, long value1, long value2) {
+        handler.handle(types[type], key, value1, value2);
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+import git.comelf.event.journal.EventSerializer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Envelope the dispatcher queues events in when it needs to know more about
+ * them than the event itself tells: when the event was enqueued, with queue
+ * time tracking on, and its journal sequence, with a journal. Event threads
+ * unwrap it before dispatching, handlers never see it.
+ */
+final class QueuedEvent implements Event {
+
+    final Event event;
+    // Monotonic time the event was enqueued at, in nanoseconds, or -1.
+    final long enqueueTimeNanos;
+    // Sequence of the event in the journal, or -1.
+    final long journalSequence;
+
+    QueuedEvent(Event event, long enqueueTimeNanos, long journalSequence) {
+        this.event = event;
+        this.enqueueTimeNanos = enqueueTimeNanos;
+        this.journalSequence = journalSequence;
+    }
+
+    static Event unwrap(Event event) {
+        return event instanceof QueuedEvent ? ((QueuedEvent) event).event : event;
+    }
+
+    /**
+     * Wrap a serializer of plain events into one that also keeps the
+     * envelope, for queues writing queued events out.
+     */
+    static EventSerializer serializer(final EventSerializer serializer) {
+        return new EventSerializer() {
+            @Override
+            public byte[] serialize(Event event) throws IOException {
+                if (!(event instanceof QueuedEvent)) {
+                    byte[] payload = serializer.serialize(event);
+                    return ByteBuffer.allocate(1 + payload.length)
+                            .put((byte) 0).put(payload).array();
+                }
+                QueuedEvent queued = (QueuedEvent) event;
+                byte[] payload = serializer.serialize(queued.event);
+                return ByteBuffer.allocate(17 + payload.length).put((byte) 1)
+                        .putLong(queued.enqueueTimeNanos).putLong(queued.journalSequence)
+                        .put(payload).array();
+            }
+
+            @Override
+            public Event deserialize(ByteBuffer buffer) throws IOException {
+                if (buffer.get() == 0) {
+                    return serializer.deserialize(buffer.slice());
+                }
+                long enqueueTime = buffer.getLong();
+                long sequence = buffer.getLong();
+                return new QueuedEvent(serializer.deserialize(buffer.slice()),
+                        enqueueTime, sequence);
+            }
+        };
+    }
+
+    @Override
+    public Enum getType() {
+        return event.getType();
+    }
+
+    @Override
+    public long getTimestamp() {
+        return event.getTimestamp();
+    }
+
+    @Override
+    public String toString() {
+        return event.toString();
+    }
+}
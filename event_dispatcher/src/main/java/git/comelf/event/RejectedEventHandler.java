@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+/**
+ * Callback for events the dispatcher did not dispatch because its queue was
+ * full, or the {@link Bulkhead} of their class was. Events coalesced into a
+ * discarded event are reported as well, as are those coalesced into an event
+ * that failed to be journaled, with {@link OverflowPolicy#REJECT}. Called on the producer
+ * thread, or the event thread for bulkheads, so implementations should be
+ * cheap.
+ */
+public interface RejectedEventHandler {
+
+    /**
+     * @param event  the event that was discarded, which is the oldest queued
+     *               event for {@link OverflowPolicy#DROP_OLDEST} and the new
+     *               event otherwise
+     * @param policy the overflow policy that discarded it,
+     *               {@link OverflowPolicy#REJECT} for a full bulkhead
+     */
+    void rejected(Event event, OverflowPolicy policy);
+
+}
@@ -0,0 +1,482 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.journal;
+
+import git.comelf.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of queued events, kept in append-only memory-mapped
+ * segment files. Every appended event gets a sequence number and stays in
+ * the journal until it is acknowledged; the checkpoint is the lowest
+ * sequence not acknowledged yet. After a restart the events from the
+ * checkpoint on are replayed, so events are handled at least once.
+ * <p>
+ * A flusher thread forces appended records to disk every flush interval.
+ * In sync mode {@link #append(Event)} also waits for the flush covering its
+ * record, and all appends waiting at the same time share one flush. The
+ * checkpoint is written every checkpoint interval, and segments holding only
+ * acknowledged events are deleted then.
+ */
+public class EventJournal implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventJournal.class);
+
+    private static final String CHECKPOINT = "checkpoint";
+    // Sequences covered by the initial acknowledgement window, a power of two.
+    private static final int INITIAL_ACK_WINDOW = 1024;
+
+    private final File dir;
+    private final EventSerializer serializer;
+    private final int segmentSize;
+    private final long flushInterval;
+    private final long checkpointInterval;
+    private final boolean sync;
+
+    private final Object appendLock = new Object();
+    // Oldest first, the last one is appended to. Guarded by appendLock.
+    private final ArrayDeque<JournalSegment> segments = new ArrayDeque<>();
+    private long nextSequence;
+    // Sequences of the records found when opening, to replay.
+    private long replayEnd;
+
+    private final Object flushMonitor = new Object();
+    private boolean flushRequested;
+    // Every record below this sequence is on disk.
+    private volatile long flushedSequence;
+
+    private final Object ackLock = new Object();
+    private long checkpoint;
+    // Acknowledged sequences above the checkpoint, one bit per sequence in a
+    // circular window starting at the checkpoint. Grown to the span of
+    // sequences acknowledged out of order, which asynchronous, batched and
+    // unordered handlers make common, and never beyond the sequences
+    // appended. Both guarded by ackLock.
+    private long[] ackedAhead = new long[INITIAL_ACK_WINDOW / 64];
+    private int ackedAheadCount;
+    private long writtenCheckpoint;
+
+    private Thread flusher;
+    private volatile boolean closed;
+
+    /**
+     * @param dir                directory for segment and checkpoint files
+     * @param serializer         serializer for the events
+     * @param segmentSize        size of a segment file in bytes
+     * @param flushInterval      longest time between flushes, in milliseconds
+     * @param checkpointInterval time between checkpoints, in milliseconds
+     * @param sync               whether appends wait for their record to be
+     *                           flushed
+     */
+    public EventJournal(File dir, EventSerializer serializer, int segmentSize,
+                        long flushInterval, long checkpointInterval, boolean sync) {
+        this.dir = Objects.requireNonNull(dir);
+        this.serializer = Objects.requireNonNull(serializer);
+        if (segmentSize <= JournalSegment.RECORD_HEADER) {
+            throw new IllegalArgumentException("Invalid segment size " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+        this.flushInterval = Math.max(1, flushInterval);
+        this.checkpointInterval = Math.max(1, checkpointInterval);
+        this.sync = sync;
+    }
+
+    /**
+     * Open the journal, reading the checkpoint and the existing segments,
+     * and start the flusher.
+     *
+     * @throws IOException if the journal directory cannot be used
+     */
+    public void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + dir);
+        }
+        checkpoint = readCheckpoint();
+        writtenCheckpoint = checkpoint;
+        String[] names = dir.list();
+        if (names == null) {
+            throw new IOException("Cannot list journal directory " + dir);
+        }
+        Arrays.sort(names);
+        synchronized (appendLock) {
+            nextSequence = checkpoint;
+            for (String name : names) {
+                if (!JournalSegment.isSegmentFile(name)) {
+                    continue;
+                }
+                JournalSegment segment = JournalSegment.open(new File(dir, name));
+                if (segment.getCount() == 0 || segment.getEndSequence() <= checkpoint) {
+                    deleteSegment(segment);
+                } else {
+                    segments.add(segment);
+                    nextSequence = Math.max(nextSequence, segment.getEndSequence());
+                }
+            }
+            replayEnd = nextSequence;
+            // Never append behind a possibly torn record.
+            segments.add(JournalSegment.create(dir, nextSequence, segmentSize));
+        }
+        flushedSequence = nextSequence;
+        LOG.info("Opened event journal " + dir + " at checkpoint " + checkpoint
+                + ", " + (replayEnd - checkpoint) + " events to replay");
+
+        flusher = new Thread(this::runFlusher);
+        flusher.setName("Event journal flusher " + dir.getName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Pass every event that was in the journal when it was opened and has
+     * not been acknowledged to the given consumer, in sequence order.
+     *
+     * @param consumer receives each event and its sequence
+     * @return number of events replayed
+     * @throws IOException if an event cannot be deserialized
+     */
+    public long replay(ObjLongConsumer<Event> consumer) throws IOException {
+        List<JournalSegment> snapshot;
+        long start;
+        synchronized (appendLock) {
+            snapshot = new ArrayList<>(segments);
+        }
+        synchronized (ackLock) {
+            start = checkpoint;
+        }
+        CRC32 crc = new CRC32();
+        long replayed = 0;
+        for (JournalSegment segment : snapshot) {
+            if (segment.baseSequence >= replayEnd) {
+                break;
+            }
+            int position = 0;
+            for (long sequence = segment.baseSequence;
+                 sequence < segment.getEndSequence() && sequence < replayEnd; sequence++) {
+                ByteBuffer record = segment.readRecord(position, crc);
+                position += JournalSegment.RECORD_HEADER + record.remaining();
+                if (sequence >= start) {
+                    consumer.accept(serializer.deserialize(record), sequence);
+                    replayed++;
+                }
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Append an event. In sync mode, waits until the event is on disk.
+     *
+     * @param event event to append
+     * @return sequence of the event
+     * @throws IOException          if the event cannot be serialized, is
+     *                              serialized to nothing, or the journal is
+     *                              closed
+     * @throws InterruptedException if interrupted while waiting for the flush
+     */
+    public long append(Event event) throws IOException, InterruptedException {
+        byte[] payload = serializer.serialize(event);
+        // A zero length marks the end of a segment.
+        if (payload.length == 0) {
+            throw new IOException("Event " + event + " was serialized to an empty record");
+        }
+        if (JournalSegment.RECORD_HEADER + payload.length > segmentSize) {
+            throw new IOException("Event of " + payload.length
+                    + " bytes does not fit in a journal segment of " + segmentSize);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        long sequence;
+        synchronized (appendLock) {
+            if (closed) {
+                throw new IOException("Event journal " + dir + " is closed");
+            }
+            JournalSegment segment = segments.peekLast();
+            if (!segment.hasRoom(payload.length)) {
+                segment = JournalSegment.create(dir, nextSequence, segmentSize);
+                segments.add(segment);
+            }
+            segment.append(payload, (int) crc.getValue());
+            sequence = nextSequence++;
+        }
+        if (sync) {
+            awaitFlushed(sequence);
+        }
+        return sequence;
+    }
+
+    private void awaitFlushed(long sequence) throws InterruptedException, IOException {
+        synchronized (flushMonitor) {
+            if (flushedSequence > sequence) {
+                return;
+            }
+            flushRequested = true;
+            flushMonitor.notifyAll();
+            while (flushedSequence <= sequence) {
+                if (closed) {
+                    throw new IOException("Event journal " + dir + " closed before flush");
+                }
+                flushMonitor.wait();
+            }
+        }
+    }
+
+    /**
+     * Acknowledge that the event with the given sequence no longer needs to
+     * be replayed.
+     *
+     * @param sequence sequence returned by {@link #append(Event)} or passed
+     *                 to the replay consumer
+     */
+    public void ack(long sequence) {
+        synchronized (ackLock) {
+            if (sequence == checkpoint) {
+                checkpoint++;
+                while (ackedAheadCount > 0 && clearAckedAhead(checkpoint)) {
+                    ackedAheadCount--;
+                    checkpoint++;
+                }
+            } else if (sequence > checkpoint) {
+                long offset = sequence - checkpoint;
+                if (offset >= (long) ackedAhead.length * 64) {
+                    growAckWindow(offset);
+                }
+                if (setAckedAhead(ackedAhead, sequence)) {
+                    ackedAheadCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the bit was clear before
+     */
+    private static boolean setAckedAhead(long[] window, long sequence) {
+        int word = (int) ((sequence >>> 6) & (window.length - 1));
+        long bit = 1L << sequence;
+        if ((window[word] & bit) != 0) {
+            return false;
+        }
+        window[word] |= bit;
+        return true;
+    }
+
+    /**
+     * @return whether the bit was set before
+     */
+    private boolean clearAckedAhead(long sequence) {
+        int word = (int) ((sequence >>> 6) & (ackedAhead.length - 1));
+        long bit = 1L << sequence;
+        if ((ackedAhead[word] & bit) == 0) {
+            return false;
+        }
+        ackedAhead[word] &= ~bit;
+        return true;
+    }
+
+    /**
+     * Grow the acknowledgement window to cover the given offset from the
+     * checkpoint, moving the bits set to their place in the new window.
+     */
+    private void growAckWindow(long offset) {
+        long bits = (long) ackedAhead.length * 64;
+        while (bits <= offset) {
+            bits <<= 1;
+        }
+        if (bits > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Acknowledged " + offset
+                    + " events ahead of the journal checkpoint " + checkpoint);
+        }
+        long[] window = new long[(int) (bits >>> 6)];
+        long end = checkpoint + (long) ackedAhead.length * 64;
+        for (long sequence = checkpoint + 1; sequence < end; sequence++) {
+            int word = (int) ((sequence >>> 6) & (ackedAhead.length - 1));
+            if ((ackedAhead[word] & (1L << sequence)) != 0) {
+                setAckedAhead(window, sequence);
+            }
+        }
+        ackedAhead = window;
+    }
+
+    /**
+     * @return lowest sequence not acknowledged yet
+     */
+    public long getCheckpoint() {
+        synchronized (ackLock) {
+            return checkpoint;
+        }
+    }
+
+    /**
+     * @return sequence the next appended event will get
+     */
+    public long getNextSequence() {
+        synchronized (appendLock) {
+            return nextSequence;
+        }
+    }
+
+    private void runFlusher() {
+        long nextCheckpoint = System.currentTimeMillis() + checkpointInterval;
+        while (!closed) {
+            try {
+                synchronized (flushMonitor) {
+                    if (!flushRequested) {
+                        flushMonitor.wait(flushInterval);
+                    }
+                    flushRequested = false;
+                }
+                flush();
+                if (System.currentTimeMillis() >= nextCheckpoint) {
+                    writeCheckpoint();
+                    nextCheckpoint = System.currentTimeMillis() + checkpointInterval;
+                }
+            } catch (InterruptedException e) {
+                if (!closed) {
+                    LOG.warn("Event journal flusher interrupted", e);
+                }
+                return;
+            } catch (Throwable t) {
+                LOG.error("Error flushing event journal " + dir, t);
+            }
+        }
+    }
+
+    private void flush() {
+        long target;
+        List<JournalSegment> dirty = new ArrayList<>(2);
+        synchronized (appendLock) {
+            target = nextSequence;
+            for (JournalSegment segment : segments) {
+                if (segment.dirty) {
+                    segment.dirty = false;
+                    dirty.add(segment);
+                }
+            }
+        }
+        for (JournalSegment segment : dirty) {
+            segment.force();
+        }
+        synchronized (flushMonitor) {
+            if (target > flushedSequence) {
+                flushedSequence = target;
+                flushMonitor.notifyAll();
+            }
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        File file = new File(dir, CHECKPOINT);
+        if (!file.exists()) {
+            return 0;
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        if (bytes.length != 8) {
+            throw new IOException("Corrupt journal checkpoint " + file);
+        }
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    /**
+     * Persist the checkpoint if it moved and delete the segments it passed.
+     */
+    private void writeCheckpoint() throws IOException {
+        long current = getCheckpoint();
+        if (current == writtenCheckpoint) {
+            return;
+        }
+        File tmp = new File(dir, CHECKPOINT + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            buffer.putLong(0, current);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), new File(dir, CHECKPOINT).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writtenCheckpoint = current;
+
+        List<JournalSegment> obsolete = new ArrayList<>();
+        synchronized (appendLock) {
+            while (segments.size() > 1 && segments.peekFirst().getEndSequence() <= current) {
+                obsolete.add(segments.pollFirst());
+            }
+        }
+        for (JournalSegment segment : obsolete) {
+            deleteSegment(segment);
+        }
+    }
+
+    private static void deleteSegment(JournalSegment segment) throws IOException {
+        segment.close();
+        Files.deleteIfExists(segment.file.toPath());
+    }
+
+    /**
+     * Stop the flusher, flush and persist the checkpoint. Appends fail from
+     * now on.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (flusher != null) {
+            flusher.interrupt();
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        synchronized (flushMonitor) {
+            flushMonitor.notifyAll();
+        }
+        writeCheckpoint();
+        synchronized (appendLock) {
+            for (JournalSegment segment : segments) {
+                segment.close();
+            }
+            segments.clear();
+        }
+    }
+}
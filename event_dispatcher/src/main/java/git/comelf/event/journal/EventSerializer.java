@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.journal;
+
+import git.comelf.event.Event;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts events to bytes and back, for events that are written to disk
+ * by the dispatcher.
+ */
+public interface EventSerializer {
+
+    /**
+     * @param event event to write
+     * @return serialized form of the event, at least one byte long
+     * @throws IOException if the event cannot be serialized
+     */
+    byte[] serialize(Event event) throws IOException;
+
+    /**
+     * @param buffer buffer holding exactly one serialized event, between its
+     *               position and limit
+     * @return the event
+     * @throws IOException if the bytes are not a valid event
+     */
+    Event deserialize(ByteBuffer buffer) throws IOException;
+}
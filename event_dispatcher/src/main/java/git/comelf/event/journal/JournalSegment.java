@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A memory-mapped, pre-sized journal file holding consecutive records, the
+ * first of which has sequence {@link #baseSequence}. A record is a length,
+ * a CRC32 of the payload and the payload; a zero length marks the end of
+ * the records, as does a record failing its checksum, which is what a torn
+ * write leaves behind.
+ */
+final class JournalSegment {
+
+    static final int RECORD_HEADER = 8;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+
+    final File file;
+    final long baseSequence;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    // Guarded by the journal append lock.
+    private int writePosition;
+    private int count;
+    // Set by appends, cleared by the flusher before it forces the segment.
+    volatile boolean dirty;
+
+    private JournalSegment(File file, long baseSequence, int size) throws IOException {
+        this.file = file;
+        this.baseSequence = baseSequence;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            this.channel = raf.getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    static JournalSegment create(File dir, long baseSequence, int size) throws IOException {
+        return new JournalSegment(new File(dir, fileName(baseSequence)), baseSequence, size);
+    }
+
+    /**
+     * Open an existing segment and find the end of its valid records.
+     */
+    static JournalSegment open(File file) throws IOException {
+        JournalSegment segment = new JournalSegment(file, parseBaseSequence(file.getName()), 0);
+        CRC32 crc = new CRC32();
+        int position = 0;
+        int count = 0;
+        while (true) {
+            ByteBuffer record = segment.readRecord(position, crc);
+            if (record == null) {
+                break;
+            }
+            position += RECORD_HEADER + record.remaining();
+            count++;
+        }
+        segment.writePosition = position;
+        segment.count = count;
+        return segment;
+    }
+
+    static String fileName(long baseSequence) {
+        return String.format("%s%020d%s", PREFIX, baseSequence, SUFFIX);
+    }
+
+    static boolean isSegmentFile(String name) {
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+    }
+
+    static long parseBaseSequence(String name) {
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * @return the payload of the record at the given position, or null if
+     * there is no valid record there
+     */
+    ByteBuffer readRecord(int position, CRC32 crc) {
+        if (position + RECORD_HEADER > buffer.capacity()) {
+            return null;
+        }
+        int length = buffer.getInt(position);
+        if (length <= 0 || length > buffer.capacity() - position - RECORD_HEADER) {
+            return null;
+        }
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(position + RECORD_HEADER);
+        payload.limit(position + RECORD_HEADER + length);
+        crc.reset();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+            return null;
+        }
+        return payload.slice();
+    }
+
+    boolean hasRoom(int payloadLength) {
+        return buffer.capacity() - writePosition >= RECORD_HEADER + payloadLength;
+    }
+
+    void append(byte[] payload, int checksum) {
+        buffer.putInt(writePosition + 4, checksum);
+        buffer.position(writePosition + RECORD_HEADER);
+        buffer.put(payload);
+        // Written last, so that a record is never valid before its payload.
+        buffer.putInt(writePosition, payload.length);
+        writePosition += RECORD_HEADER + payload.length;
+        count++;
+        dirty = true;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getEndSequence() {
+        return baseSequence + count;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+}
@@ -18,10 +18,36 @@
 
 package git.comelf.event.metrics;
 
+import java.util.concurrent.TimeUnit;
+
 public interface EventTypeMetrics <T extends Enum<T>> {
 
     void increment(T type, long processingTimeUs);
 
+    /**
+     * Record a dispatched event. This is what the dispatcher calls; by
+     * default it passes the handler time to {@link #increment} in
+     * milliseconds, the unit the dispatcher has always reported in.
+     *
+     * @param type             event type
+     * @param handlerTimeNanos time spent dispatching the event, in nanoseconds
+     * @param queueTimeNanos   time the event waited in the queue before being
+     *                         dispatched, in nanoseconds, or -1 if unknown
+     */
+    default void record(T type, long handlerTimeNanos, long queueTimeNanos) {
+        increment(type, TimeUnit.NANOSECONDS.toMillis(handlerTimeNanos));
+    }
+
+    /**
+     * Record a batch delivered to a batch handler. The events of the batch
+     * are recorded one by one as well, when they are dispatched into it.
+     *
+     * @param size             number of events in the batch
+     * @param handlerTimeNanos time the batch handler took, in nanoseconds
+     */
+    default void recordBatch(int size, long handlerTimeNanos) {
+    }
+
     long get(T type);
 
 }
@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.metrics;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Event type metrics keeping latency distributions instead of sums: one
+ * histogram of handler time and one of queue wait time per event type, both
+ * in nanoseconds. Histograms are created on the first event of a type.
+ * Batches delivered to batch handlers go into two more histograms, of their
+ * size and of their handler time.
+ */
+public class HistogramEventTypeMetrics<T extends Enum<T>> implements EventTypeMetrics<T> {
+
+    private final Class<T> enumClass;
+    private final AtomicReferenceArray<LatencyHistogram> handlerTimes;
+    private final AtomicReferenceArray<LatencyHistogram> queueTimes;
+    private final LatencyHistogram batchSizes = new LatencyHistogram();
+    private final LatencyHistogram batchTimes = new LatencyHistogram();
+
+    public HistogramEventTypeMetrics(Class<T> enumClass) {
+        Objects.requireNonNull(enumClass);
+        this.enumClass = enumClass;
+        int types = enumClass.getEnumConstants().length;
+        this.handlerTimes = new AtomicReferenceArray<>(types);
+        this.queueTimes = new AtomicReferenceArray<>(types);
+    }
+
+    @Override
+    public void increment(T type, long processingTimeMs) {
+        record(type, TimeUnit.MILLISECONDS.toNanos(processingTimeMs), -1);
+    }
+
+    @Override
+    public void record(T type, long handlerTimeNanos, long queueTimeNanos) {
+        histogram(handlerTimes, type).record(handlerTimeNanos);
+        if (queueTimeNanos >= 0) {
+            histogram(queueTimes, type).record(queueTimeNanos);
+        }
+    }
+
+    @Override
+    public void recordBatch(int size, long handlerTimeNanos) {
+        batchSizes.record(size);
+        batchTimes.record(handlerTimeNanos);
+    }
+
+    private static LatencyHistogram histogram(
+            AtomicReferenceArray<LatencyHistogram> histograms, Enum<?> type) {
+        int ordinal = type.ordinal();
+        LatencyHistogram histogram = histograms.get(ordinal);
+        if (histogram == null) {
+            histograms.compareAndSet(ordinal, null, new LatencyHistogram());
+            histogram = histograms.get(ordinal);
+        }
+        return histogram;
+    }
+
+    @Override
+    public long get(T type) {
+        return getHandlerTime(type).getCount();
+    }
+
+    /**
+     * @return distribution of the time spent in handlers, in nanoseconds
+     */
+    public LatencyHistogram getHandlerTime(T type) {
+        return histogram(handlerTimes, type);
+    }
+
+    /**
+     * @return distribution of the time events waited in the queue before
+     * being dispatched, in nanoseconds
+     */
+    public LatencyHistogram getQueueTime(T type) {
+        return histogram(queueTimes, type);
+    }
+
+    /**
+     * @return distribution of the number of events per batch
+     */
+    public LatencyHistogram getBatchSize() {
+        return batchSizes;
+    }
+
+    /**
+     * @return distribution of the time spent in batch handlers, in
+     * nanoseconds
+     */
+    public LatencyHistogram getBatchTime() {
+        return batchTimes;
+    }
+
+    public Class<T> getEnumClass() {
+        return enumClass;
+    }
+}
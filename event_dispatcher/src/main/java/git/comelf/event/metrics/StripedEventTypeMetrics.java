@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.metrics;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Same counters as {@link SimpleEventTypeMetrics}, backed by
+ * {@link LongAdder}s in flat arrays indexed by enum ordinal, so an update is
+ * two array loads and two uncontended cell adds even when several threads
+ * share one instance. Processing time is summed in nanoseconds.
+ */
+public class StripedEventTypeMetrics<T extends Enum<T>> implements EventTypeMetrics<T> {
+
+    private final LongAdder[] eventCounts;
+    private final LongAdder[] processingTimes;
+    private final Class<T> enumClass;
+
+    public StripedEventTypeMetrics(Class<T> enumClass) {
+        Objects.requireNonNull(enumClass);
+
+        this.enumClass = enumClass;
+        int types = enumClass.getEnumConstants().length;
+        this.eventCounts = new LongAdder[types];
+        this.processingTimes = new LongAdder[types];
+        for (int i = 0; i < types; i++) {
+            eventCounts[i] = new LongAdder();
+            processingTimes[i] = new LongAdder();
+        }
+    }
+
+    @Override
+    public void increment(T type, long processingTimeMs) {
+        record(type, TimeUnit.MILLISECONDS.toNanos(processingTimeMs), -1);
+    }
+
+    @Override
+    public void record(T type, long handlerTimeNanos, long queueTimeNanos) {
+        int ordinal = type.ordinal();
+        eventCounts[ordinal].increment();
+        processingTimes[ordinal].add(handlerTimeNanos);
+    }
+
+    @Override
+    public long get(T type) {
+        return eventCounts[type.ordinal()].sum();
+    }
+
+    /**
+     * @return total processing time in milliseconds
+     */
+    public long getTotalProcessingTime(T type) {
+        return TimeUnit.NANOSECONDS.toMillis(getTotalProcessingTimeNanos(type));
+    }
+
+    public long getTotalProcessingTimeNanos(T type) {
+        return processingTimes[type.ordinal()].sum();
+    }
+
+    public Class<T> getEnumClass() {
+        return enumClass;
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.pool;
+
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Fixed set of preallocated {@link PooledEvent}s. Claiming and recycling
+ * events allocates nothing; the pool size bounds the events in flight, so
+ * {@link #claim()} also applies back-pressure once the dispatcher falls
+ * behind.
+ */
+public class EventPool<E extends PooledEvent<?>> {
+
+    private final int size;
+    private final ArrayBlockingQueue<E> free;
+
+    /**
+     * @param size    number of events in the pool
+     * @param factory creates the events, called {@code size} times
+     */
+    public EventPool(int size, Supplier<E> factory) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Invalid pool size " + size);
+        }
+        Objects.requireNonNull(factory);
+        this.size = size;
+        this.free = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            E event = Objects.requireNonNull(factory.get());
+            if (event.pool != null) {
+                throw new IllegalArgumentException("Event already belongs to a pool");
+            }
+            event.pool = this;
+            free.add(event);
+        }
+    }
+
+    /**
+     * Claim an event, waiting for one to be recycled if all are in use.
+     *
+     * @return an event holding one reference, with no type set
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public E claim() throws InterruptedException {
+        E event = free.take();
+        event.claimed();
+        return event;
+    }
+
+    /**
+     * @return an event holding one reference, or null if all are in use
+     */
+    public E tryClaim() {
+        E event = free.poll();
+        if (event != null) {
+            event.claimed();
+        }
+        return event;
+    }
+
+    @SuppressWarnings("unchecked")
+    void recycle(PooledEvent<?> event) {
+        if (!free.offer((E) event)) {
+            throw new IllegalStateException("Event pool overflow, recycled " + event + " twice");
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return number of events not in use
+     */
+    public int getAvailable() {
+        return free.size();
+    }
+}
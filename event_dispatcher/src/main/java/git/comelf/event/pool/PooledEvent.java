@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.pool;
+
+import git.comelf.event.Event;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Mutable, reusable event belonging to an {@link EventPool}. Producers claim
+ * one from the pool, fill it in and hand it to the dispatcher, which returns
+ * it to the pool once it is dispatched, rejected or discarded, so steady
+ * state dispatching allocates no events.
+ * <p>
+ * The event is reference counted: claiming it holds one reference, which
+ * the dispatcher takes over on publication. Handlers that keep the event
+ * past their call must {@link #retain()} it and {@link #release()} it when
+ * done, as must anyone reading it after publishing. The dispatcher does this
+ * itself for parallel multicast listeners, async handlers and batch handlers.
+ * Pooled events support neither coalescing, as merged events are never
+ * released, nor the spilling queue, which reads back copies of the events.
+ * <p>
+ * Subclasses add the payload fields and clear them in {@link #reset()}.
+ */
+public abstract class PooledEvent<T extends Enum<T>> implements Event<T> {
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<PooledEvent> REFERENCES =
+            AtomicIntegerFieldUpdater.newUpdater(PooledEvent.class, "references");
+
+    private volatile int references;
+    // Set by the pool when it creates the event.
+    EventPool<?> pool;
+
+    private T type;
+    private long timestamp;
+
+    @Override
+    public T getType() {
+        return type;
+    }
+
+    public void setType(T type) {
+        this.type = type;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Take another reference to the event, keeping it from being recycled
+     * until {@link #release()} is called for it.
+     */
+    public void retain() {
+        if (REFERENCES.getAndIncrement(this) <= 0) {
+            REFERENCES.getAndDecrement(this);
+            throw new IllegalStateException("Retaining a recycled event " + this);
+        }
+    }
+
+    /**
+     * Drop a reference to the event, returning it to its pool with the last
+     * one.
+     */
+    public void release() {
+        int remaining = REFERENCES.decrementAndGet(this);
+        if (remaining == 0) {
+            reset();
+            type = null;
+            timestamp = 0;
+            pool.recycle(this);
+        } else if (remaining < 0) {
+            REFERENCES.getAndIncrement(this);
+            throw new IllegalStateException("Releasing a recycled event " + this);
+        }
+    }
+
+    /**
+     * @return references held to the event, 0 while it is in the pool
+     */
+    public int getReferenceCount() {
+        return references;
+    }
+
+    void claimed() {
+        REFERENCES.set(this, 1);
+    }
+
+    /**
+     * Clear the payload before the event goes back to the pool, so it does
+     * not keep anything reachable.
+     */
+    protected void reset() {
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.queue;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded multi-producer, single-consumer ring of primitive events, stored
+ * as a struct of arrays: one array each for the type ordinal, the key and
+ * two long values. Queued events cost no objects, only their slots, and a
+ * deep queue is read sequentially from a few flat arrays.
+ * <p>
+ * Slots are claimed and published like in {@link RingBufferEventQueue}. A
+ * slot is handed back to producers only after the consumer's callback
+ * returns, so an empty ring means every event has been handled.
+ */
+public class PrimitiveEventRing {
+
+    /**
+     * Receives the fields of each event taken from the ring.
+     */
+    public interface Consumer {
+        void accept(int type, long key, long value1, long value2);
+    }
+
+    private final int[] types;
+    private final long[] keys;
+    private final long[] values1;
+    private final long[] values2;
+    // Slot sequence, as in RingBufferEventQueue.
+    private final AtomicLongArray published;
+    private final int mask;
+    private final int capacity;
+
+    private final Sequence producerSequence = new Sequence(0);
+    private final Sequence consumerSequence = new Sequence(0);
+
+    private volatile Thread waitingConsumer;
+    private volatile boolean closed;
+
+    /**
+     * @param capacity minimum capacity, rounded up to the next power of two
+     *                 and to at least 2, like {@link RingBufferEventQueue}
+     */
+    public PrimitiveEventRing(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        this.capacity = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.types = new int[this.capacity];
+        this.keys = new long[this.capacity];
+        this.values1 = new long[this.capacity];
+        this.values2 = new long[this.capacity];
+        this.published = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            published.lazySet(i, i);
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Add an event unless the ring is full or closed.
+     *
+     * @return whether the event was added
+     */
+    public boolean offer(int type, long key, long value1, long value2) {
+        if (closed) {
+            return false;
+        }
+        while (true) {
+            long sequence = producerSequence.get();
+            int index = (int) sequence & mask;
+            long available = published.get(index);
+            if (available == sequence) {
+                if (producerSequence.compareAndSet(sequence, sequence + 1)) {
+                    types[index] = type;
+                    keys[index] = key;
+                    values1[index] = value1;
+                    values2[index] = value2;
+                    published.set(index, sequence + 1);
+                    Thread consumer = waitingConsumer;
+                    if (consumer != null) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+            } else if (available < sequence) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Add an event, backing off while the ring is full, unless the ring is
+     * or gets closed.
+     *
+     * @return whether the event was added
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public boolean put(int type, long key, long value1, long value2)
+            throws InterruptedException {
+        int tries = 0;
+        while (!offer(type, key, value1, value2)) {
+            if (closed) {
+                return false;
+            }
+            tries = RingBufferEventQueue.backoff(tries);
+        }
+        return true;
+    }
+
+    /**
+     * Stop taking events. Producers waiting for room give up; an event a
+     * producer was adding at the time may still be added.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Pass up to {@code maxEvents} events to the consumer, in order. Only one
+     * thread may consume. If the consumer throws, the event it threw for is
+     * consumed and the exception propagates.
+     *
+     * @return number of events consumed
+     */
+    public int drainTo(Consumer consumer, int maxEvents) {
+        int n = 0;
+        long sequence = consumerSequence.get();
+        while (n < maxEvents) {
+            int index = (int) sequence & mask;
+            if (published.get(index) != sequence + 1) {
+                break;
+            }
+            try {
+                consumer.accept(types[index], keys[index], values1[index], values2[index]);
+            } finally {
+                published.lazySet(index, sequence + capacity);
+                consumerSequence.lazySet(++sequence);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Wait until an event is available to the consumer.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitAvailable() throws InterruptedException {
+        if (!isEmpty()) {
+            return;
+        }
+        waitingConsumer = Thread.currentThread();
+        try {
+            while (isEmpty()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                LockSupport.park(this);
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+    }
+
+    public boolean isEmpty() {
+        long sequence = consumerSequence.get();
+        return published.get((int) sequence & mask) != sequence + 1;
+    }
+
+    /**
+     * @return number of events added and not fully consumed, a snapshot
+     */
+    public int size() {
+        long size = producerSequence.get() - consumerSequence.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+}
@@ -0,0 +1,412 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.queue;
+
+import git.comelf.event.Event;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An event queue made of several FIFO lanes. Events are put in a lane
+ * according to the enum class declaring their type; lane 0 has the highest
+ * priority. Classes without an assigned lane use the lowest priority lane.
+ * <p>
+ * With {@link Policy#STRICT} the consumer always takes from the highest
+ * priority non-empty lane. With {@link Policy#WEIGHTED} it serves lanes round
+ * robin, taking up to the lane's weight in events before moving on, so a lane
+ * never waits for more than the sum of the other lanes' weights.
+ * <p>
+ * Events of one class always share a lane and keep their order.
+ */
+public class PriorityLaneEventQueue extends AbstractQueue<Event>
+        implements BlockingQueue<Event> {
+
+    public enum Policy {
+        STRICT, WEIGHTED
+    }
+
+    private final ArrayDeque<Event>[] lanes;
+    private final int[] weights;
+    private final Policy policy;
+    private final int capacity;
+    private final Map<Class<? extends Enum>, Integer> laneByClass =
+            new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    // Updated under the lock, read without it by size().
+    private final AtomicInteger count = new AtomicInteger();
+
+    // Weighted round robin state, guarded by the lock.
+    private int currentLane;
+    private int credits;
+
+    /**
+     * @param policy   how lanes are serviced
+     * @param weights  one weight per lane, only used by {@link Policy#WEIGHTED}
+     * @param capacity maximum number of events in all lanes together
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityLaneEventQueue(Policy policy, int[] weights, int capacity) {
+        if (weights.length == 0) {
+            throw new IllegalArgumentException("At least one lane is required");
+        }
+        for (int weight : weights) {
+            if (weight < 1) {
+                throw new IllegalArgumentException("Lane weights should be positive: "
+                        + Arrays.toString(weights));
+            }
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        this.policy = Objects.requireNonNull(policy);
+        this.weights = weights.clone();
+        this.capacity = capacity;
+        this.lanes = new ArrayDeque[weights.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+        this.credits = weights[0];
+    }
+
+    public PriorityLaneEventQueue(Policy policy, int[] weights) {
+        this(policy, weights, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Put events of the given class in the given lane from now on. Lanes
+     * beyond the last one are mapped to the last, lowest priority lane.
+     *
+     * @param eventClass enum class declaring the event types
+     * @param lane       lane index, 0 being the highest priority
+     */
+    public void setLane(Class<? extends Enum> eventClass, int lane) {
+        if (lane < 0) {
+            throw new IllegalArgumentException("Invalid lane " + lane);
+        }
+        laneByClass.put(eventClass, Math.min(lane, lanes.length - 1));
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public int[] getWeights() {
+        return weights.clone();
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of events waiting in the given lane
+     */
+    public int laneSize(int lane) {
+        lock.lock();
+        try {
+            return lanes[lane].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int laneOf(Event event) {
+        Integer lane = laneByClass.get(event.getType().getDeclaringClass());
+        return lane == null ? lanes.length - 1 : lane;
+    }
+
+    @Override
+    public boolean offer(Event event) {
+        Objects.requireNonNull(event);
+        int lane = laneOf(event);
+        lock.lock();
+        try {
+            if (count.get() == capacity) {
+                return false;
+            }
+            enqueue(lane, event);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Event event) throws InterruptedException {
+        Objects.requireNonNull(event);
+        int lane = laneOf(event);
+        lock.lockInterruptibly();
+        try {
+            while (count.get() == capacity) {
+                notFull.await();
+            }
+            enqueue(lane, event);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Event event, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        Objects.requireNonNull(event);
+        int lane = laneOf(event);
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count.get() == capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(lane, event);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(int lane, Event event) {
+        lanes[lane].addLast(event);
+        count.incrementAndGet();
+        notEmpty.signal();
+    }
+
+    private Event dequeue() {
+        int lane = nextLane();
+        if (policy == Policy.WEIGHTED) {
+            credits--;
+        }
+        Event event = lanes[lane].pollFirst();
+        count.decrementAndGet();
+        notFull.signal();
+        return event;
+    }
+
+    /**
+     * Pick the lane to take the next event from. The queue must not be empty.
+     */
+    private int nextLane() {
+        if (policy == Policy.STRICT) {
+            for (int i = 0; i < lanes.length; i++) {
+                if (!lanes[i].isEmpty()) {
+                    return i;
+                }
+            }
+            throw new IllegalStateException("Queue is empty");
+        }
+        if (credits > 0 && !lanes[currentLane].isEmpty()) {
+            return currentLane;
+        }
+        for (int i = 1; i <= lanes.length; i++) {
+            int lane = (currentLane + i) % lanes.length;
+            if (!lanes[lane].isEmpty()) {
+                currentLane = lane;
+                credits = weights[lane];
+                return lane;
+            }
+        }
+        throw new IllegalStateException("Queue is empty");
+    }
+
+    @Override
+    public Event poll() {
+        if (count.get() == 0) {
+            return null;
+        }
+        lock.lock();
+        try {
+            return count.get() == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Event take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count.get() == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Event poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count.get() == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the head of the highest priority non-empty lane, which is not
+     * necessarily the next event taken under {@link Policy#WEIGHTED}.
+     */
+    @Override
+    public Event peek() {
+        lock.lock();
+        try {
+            for (ArrayDeque<Event> lane : lanes) {
+                Event event = lane.peekFirst();
+                if (event != null) {
+                    return event;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the oldest event of the lowest priority non-empty lane, the
+     * event to give up first when the queue is full.
+     *
+     * @return the removed event, or null if the queue is empty
+     */
+    public Event pollLowestPriority() {
+        lock.lock();
+        try {
+            for (int i = lanes.length - 1; i >= 0; i--) {
+                Event event = lanes[i].pollFirst();
+                if (event != null) {
+                    count.decrementAndGet();
+                    notFull.signal();
+                    return event;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Event> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Event> c, int maxElements) {
+        Objects.requireNonNull(c);
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && count.get() > 0) {
+                c.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        lock.lock();
+        try {
+            for (ArrayDeque<Event> lane : lanes) {
+                if (lane.removeFirstOccurrence(o)) {
+                    count.decrementAndGet();
+                    notFull.signal();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return count.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count.get() == 0;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - count.get();
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queued events, lane by lane.
+     */
+    @Override
+    public Iterator<Event> iterator() {
+        lock.lock();
+        try {
+            List<Event> snapshot = new ArrayList<>(count.get());
+            for (ArrayDeque<Event> lane : lanes) {
+                snapshot.addAll(lane);
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.queue;
+
+import git.comelf.event.Event;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, array backed, multi-producer/single-consumer event queue.
+ * <p>
+ * Slots are preallocated, so enqueueing does not allocate. Producers claim a
+ * slot by advancing the producer sequence with a CAS and publish it by
+ * writing the slot's sequence; the consumer reads slots in order and hands
+ * them back to producers by advancing the slot sequence by one lap.
+ * <p>
+ * Only one thread may remove elements ({@link #poll()}, {@link #take()},
+ * {@link #drainTo(Collection)} and friends), which is the dispatcher thread
+ * of an {@code AsyncEventDispatcher} partition. {@link #peek()},
+ * {@link #iterator()} and {@link #size()} may be called from any thread but
+ * only give a best-effort snapshot. Removing arbitrary elements is not
+ * supported.
+ */
+public class RingBufferEventQueue extends AbstractQueue<Event>
+        implements BlockingQueue<Event> {
+
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    private static final int SPIN_TRIES = 100;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Event[] buffer;
+    // Slot sequence, equal to the producer sequence that may claim the slot
+    // while free, and to that sequence plus one once the event is published.
+    private final AtomicLongArray published;
+    private final int mask;
+    private final int capacity;
+
+    // Next sequence to be claimed by a producer.
+    private final Sequence producerSequence = new Sequence(0);
+    // Next sequence to be read by the consumer.
+    private final Sequence consumerSequence = new Sequence(0);
+
+    private volatile Thread waitingConsumer;
+
+    public RingBufferEventQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity minimum capacity, rounded up to the next power of two
+     *                 and to at least 2: with a single slot, a published
+     *                 slot would look free to the next producer
+     */
+    public RingBufferEventQueue(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        this.capacity = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.buffer = new Event[this.capacity];
+        this.published = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            published.lazySet(i, i);
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public boolean offer(Event event) {
+        Objects.requireNonNull(event);
+        while (true) {
+            long sequence = producerSequence.get();
+            int index = (int) sequence & mask;
+            long available = published.get(index);
+            if (available == sequence) {
+                if (producerSequence.compareAndSet(sequence, sequence + 1)) {
+                    buffer[index] = event;
+                    // Volatile write, pairs with the consumer publishing
+                    // itself in waitingConsumer before re-checking the queue.
+                    published.set(index, sequence + 1);
+                    Thread consumer = waitingConsumer;
+                    if (consumer != null) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+            } else if (available < sequence) {
+                // The slot from the previous lap was not consumed yet.
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public void put(Event event) throws InterruptedException {
+        int tries = 0;
+        while (!offer(event)) {
+            tries = backoff(tries);
+        }
+    }
+
+    @Override
+    public boolean offer(Event event, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int tries = 0;
+        while (!offer(event)) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            tries = backoff(tries);
+        }
+        return true;
+    }
+
+    /**
+     * Back off while the queue, or a {@link PrimitiveEventRing}, is full.
+     * Producers are never signalled by the consumer, so they spin briefly,
+     * then yield and finally park for exponentially longer periods up to
+     * {@link #MAX_PARK_NANOS}.
+     */
+    static int backoff(int tries) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (tries < SPIN_TRIES) {
+            // spin
+        } else if (tries < SPIN_TRIES * 2) {
+            Thread.yield();
+        } else {
+            int shift = Math.min(tries - SPIN_TRIES * 2, 20);
+            LockSupport.parkNanos(Math.min(1L << shift, MAX_PARK_NANOS));
+        }
+        return tries + 1;
+    }
+
+    @Override
+    public Event poll() {
+        long sequence = consumerSequence.get();
+        int index = (int) sequence & mask;
+        if (published.get(index) != sequence + 1) {
+            return null;
+        }
+        Event event = buffer[index];
+        buffer[index] = null;
+        published.lazySet(index, sequence + capacity);
+        consumerSequence.lazySet(sequence + 1);
+        return event;
+    }
+
+    @Override
+    public Event take() throws InterruptedException {
+        Event event = poll();
+        if (event != null) {
+            return event;
+        }
+        waitingConsumer = Thread.currentThread();
+        try {
+            while ((event = poll()) == null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                LockSupport.park(this);
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+        return event;
+    }
+
+    @Override
+    public Event poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Event event = poll();
+        if (event != null) {
+            return event;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waitingConsumer = Thread.currentThread();
+        try {
+            while ((event = poll()) == null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+        return event;
+    }
+
+    @Override
+    public Event peek() {
+        long sequence = consumerSequence.get();
+        int index = (int) sequence & mask;
+        if (published.get(index) != sequence + 1) {
+            return null;
+        }
+        return buffer[index];
+    }
+
+    @Override
+    public int drainTo(Collection<? super Event> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Event> c, int maxElements) {
+        Objects.requireNonNull(c);
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int n = 0;
+        Event event;
+        while (n < maxElements && (event = poll()) != null) {
+            c.add(event);
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public int size() {
+        // Read the consumer first so the difference can't be negative unless
+        // both sequences moved in between, in which case clamp it.
+        long consumer = consumerSequence.get();
+        long producer = producerSequence.get();
+        long size = producer - consumer;
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, capacity);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return producerSequence.get() == consumerSequence.get();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the published events, used for
+     * diagnostics such as printing the queue composition.
+     */
+    @Override
+    public Iterator<Event> iterator() {
+        long consumer = consumerSequence.get();
+        long producer = producerSequence.get();
+        List<Event> snapshot = new ArrayList<>((int) Math.min(Math.max(producer - consumer, 0), capacity));
+        for (long sequence = consumer; sequence < producer; sequence++) {
+            int index = (int) sequence & mask;
+            if (published.get(index) != sequence + 1) {
+                break;
+            }
+            Event event = buffer[index];
+            if (event != null) {
+                snapshot.add(event);
+            }
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+}
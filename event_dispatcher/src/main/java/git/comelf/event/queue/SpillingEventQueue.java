@@ -0,0 +1,573 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.queue;
+
+import git.comelf.event.Event;
+import git.comelf.event.journal.EventSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * An unbounded FIFO event queue keeping at most a fixed number of events in
+ * memory. Once the in-memory head is full, further events are collected in
+ * batches and each full batch is written to its own file in the spill
+ * directory. As the consumer empties the head, it reads the batches back in
+ * order, so producers never block on the consumer and the heap stays
+ * bounded.
+ * <p>
+ * Batch files are written and read back on a background I/O thread, so
+ * neither producers nor the consumer wait for the disk, and never under the
+ * queue lock. Once a few batches are waiting for the I/O thread, the
+ * producer filling the next one writes it itself, which slows producers
+ * down to the speed of the disk. Reading the next batch back starts while the consumer still
+ * has a batch worth of events in memory; the consumer only waits for it
+ * when handlers outrun the disk. A batch stays in memory until its file is
+ * written, and for good if writing it fails. A batch that cannot be read
+ * back is discarded and reported to the loss listener.
+ * <p>
+ * {@link #iterator()} and {@link #remove(Object)} only see the events in
+ * memory.
+ */
+public class SpillingEventQueue extends AbstractQueue<Event>
+        implements BlockingQueue<Event>, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpillingEventQueue.class);
+
+    public static final int DEFAULT_MEMORY_CAPACITY = 10_000;
+
+    // Longest time close waits for a batch being written or read.
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+    // Batches waiting for the I/O thread to write them.
+    private static final int MAX_PENDING_SPILLS = 4;
+
+    private final File dir;
+    private final EventSerializer serializer;
+    private final int memoryCapacity;
+    private final int batchSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    // Updated under the lock, read without it by size().
+    private final AtomicInteger count = new AtomicInteger();
+
+    // Events are taken from head, then from the spilled batches, then from
+    // tail. New events go to head only while the other two are empty. All
+    // guarded by the lock.
+    private ArrayDeque<Event> head = new ArrayDeque<>();
+    private final ArrayDeque<SpillBatch> spilled = new ArrayDeque<>();
+    private ArrayDeque<Event> tail = new ArrayDeque<>();
+    private boolean closed;
+
+    // Writes the batch files and reads them back. Its thread goes away while
+    // nothing is spilled.
+    private final ThreadPoolExecutor ioExecutor;
+    private final Semaphore spillPermits = new Semaphore(MAX_PENDING_SPILLS);
+    private volatile ObjIntConsumer<Enum> lossListener;
+
+    private static final class SpillBatch {
+        final int size;
+        // Set until the batch is written to file.
+        List<Event> events;
+        File file;
+        // Number of events of each type, set with the file.
+        Map<Enum, Integer> typeCounts;
+        // Set once the consumer took the batch, possibly before it was written.
+        boolean consumed;
+        // Set while the batch is read back from file.
+        boolean loading;
+
+        SpillBatch(List<Event> events) {
+            this.size = events.size();
+            this.events = events;
+        }
+    }
+
+    /**
+     * @param dir            directory for the batch files
+     * @param serializer     serializer for the events
+     * @param memoryCapacity number of events kept in memory before spilling
+     * @param batchSize      number of events per batch file
+     */
+    public SpillingEventQueue(File dir, EventSerializer serializer, int memoryCapacity,
+                              int batchSize) {
+        if (memoryCapacity < 1) {
+            throw new IllegalArgumentException("Invalid memory capacity " + memoryCapacity);
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size " + batchSize);
+        }
+        this.dir = Objects.requireNonNull(dir);
+        this.serializer = Objects.requireNonNull(serializer);
+        this.memoryCapacity = memoryCapacity;
+        this.batchSize = batchSize;
+        // Room for every spill and the one batch read back at a time.
+        this.ioExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(MAX_PENDING_SPILLS + 1), runnable -> {
+            Thread thread = new Thread(runnable, "SpillingEventQueue I/O " + dir.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ioExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Set the listener told how many events were discarded because their
+     * batch could not be read back, on the I/O thread. It is called once per
+     * event type in the batch.
+     *
+     * @param listener receives an event type, null for events without one,
+     *                 and the number of events of that type lost
+     */
+    public void setLossListener(ObjIntConsumer<Enum> listener) {
+        this.lossListener = listener;
+    }
+
+    /**
+     * @return number of events waiting in spilled batches, written to file or
+     * not
+     */
+    public int spilledSize() {
+        lock.lock();
+        try {
+            return count.get() - head.size() - tail.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Event event) {
+        Objects.requireNonNull(event);
+        SpillBatch batch = null;
+        lock.lock();
+        try {
+            if (spilled.isEmpty() && tail.isEmpty() && head.size() < memoryCapacity) {
+                head.addLast(event);
+            } else {
+                tail.addLast(event);
+                if (tail.size() >= batchSize) {
+                    batch = new SpillBatch(new ArrayList<>(tail));
+                    tail.clear();
+                    spilled.addLast(batch);
+                }
+            }
+            count.incrementAndGet();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (batch != null) {
+            final SpillBatch spilling = batch;
+            if (!spillPermits.tryAcquire()) {
+                spill(spilling);
+                return true;
+            }
+            try {
+                ioExecutor.execute(() -> {
+                    try {
+                        spill(spilling);
+                    } finally {
+                        spillPermits.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Closed, the batch is discarded with the rest.
+                spillPermits.release();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void put(Event event) {
+        offer(event);
+    }
+
+    @Override
+    public boolean offer(Event event, long timeout, TimeUnit unit) {
+        return offer(event);
+    }
+
+    private void spill(SpillBatch batch) {
+        Map<Enum, Integer> typeCounts = new HashMap<>();
+        for (Event event : batch.events) {
+            typeCounts.merge(event.getType(), 1, Integer::sum);
+        }
+        File file = null;
+        try {
+            file = File.createTempFile("spill-", ".batch", dir);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeInt(batch.events.size());
+                for (Event event : batch.events) {
+                    byte[] payload = serializer.serialize(event);
+                    out.writeInt(payload.length);
+                    out.write(payload);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to spill " + batch.events.size()
+                    + " events to " + dir + ", keeping them in memory", e);
+            if (file != null) {
+                delete(file);
+            }
+            return;
+        }
+        boolean obsolete;
+        lock.lock();
+        try {
+            obsolete = batch.consumed || closed;
+            if (!obsolete) {
+                batch.file = file;
+                batch.typeCounts = typeCounts;
+                batch.events = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (obsolete) {
+            delete(file);
+        }
+    }
+
+    private List<Event> readBatch(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            int size = in.readInt();
+            List<Event> events = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                events.add(serializer.deserialize(ByteBuffer.wrap(payload)));
+            }
+            return events;
+        } finally {
+            delete(file);
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            LOG.warn("Failed to delete spill file " + file);
+        }
+    }
+
+    /**
+     * Read a batch back from its file, on the I/O thread, and hand it to the
+     * consumer.
+     */
+    private void load(SpillBatch batch) {
+        File file;
+        lock.lock();
+        try {
+            if (batch.consumed || closed) {
+                return;
+            }
+            file = batch.file;
+        } finally {
+            lock.unlock();
+        }
+        List<Event> events = null;
+        Exception failure = null;
+        try {
+            events = readBatch(file);
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        }
+        lock.lock();
+        try {
+            batch.loading = false;
+            if (closed) {
+                return;
+            }
+            if (events != null) {
+                batch.events = events;
+                batch.file = null;
+            } else {
+                spilled.remove(batch);
+                batch.consumed = true;
+                count.addAndGet(-batch.size);
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (failure != null) {
+            // Nothing left to do with them but report the loss.
+            LOG.error("Failed to read spilled events from " + file
+                    + ", discarding " + batch.size + " of them", failure);
+            ObjIntConsumer<Enum> listener = lossListener;
+            if (listener != null) {
+                for (Map.Entry<Enum, Integer> entry : batch.typeCounts.entrySet()) {
+                    listener.accept(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Start reading the oldest batch back unless it is in memory or being
+     * read already. Called under the lock.
+     */
+    private void prefetch() {
+        SpillBatch batch = spilled.peekFirst();
+        if (batch == null || batch.events != null || batch.loading) {
+            return;
+        }
+        batch.loading = true;
+        try {
+            ioExecutor.execute(() -> load(batch));
+        } catch (RejectedExecutionException e) {
+            // Closed.
+            batch.loading = false;
+        }
+    }
+
+    /**
+     * Refill the empty head from the oldest batch or, with nothing spilled,
+     * from the tail. Leaves the head empty while the oldest batch is read
+     * back.
+     */
+    private void refill() {
+        while (head.isEmpty()) {
+            SpillBatch batch = spilled.peekFirst();
+            if (batch == null) {
+                ArrayDeque<Event> events = head;
+                head = tail;
+                tail = events;
+                return;
+            }
+            if (batch.events == null) {
+                prefetch();
+                return;
+            }
+            spilled.pollFirst();
+            batch.consumed = true;
+            head.addAll(batch.events);
+        }
+    }
+
+    private Event dequeue() {
+        if (head.isEmpty()) {
+            refill();
+        }
+        Event event = head.pollFirst();
+        if (event != null) {
+            count.decrementAndGet();
+            if (head.size() <= batchSize && !spilled.isEmpty()) {
+                prefetch();
+            }
+        }
+        return event;
+    }
+
+    @Override
+    public Event poll() {
+        if (count.get() == 0) {
+            return null;
+        }
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Event take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Event event;
+            while ((event = dequeue()) == null) {
+                notEmpty.await();
+            }
+            return event;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Event poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Event event;
+            while ((event = dequeue()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return event;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Event peek() {
+        lock.lock();
+        try {
+            if (head.isEmpty()) {
+                refill();
+            }
+            return head.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Event> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Event> c, int maxElements) {
+        Objects.requireNonNull(c);
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            int n = 0;
+            Event event;
+            while (n < maxElements && (event = dequeue()) != null) {
+                c.add(event);
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        lock.lock();
+        try {
+            if (head.removeFirstOccurrence(o) || tail.removeFirstOccurrence(o)) {
+                count.decrementAndGet();
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return count.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count.get() == 0;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE - count.get();
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the events in memory, leaving
+     * out spilled batches.
+     */
+    @Override
+    public Iterator<Event> iterator() {
+        lock.lock();
+        try {
+            List<Event> snapshot = new ArrayList<>(head.size() + tail.size());
+            snapshot.addAll(head);
+            snapshot.addAll(tail);
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard all queued events and delete the batch files, once a batch
+     * being written or read is done.
+     */
+    @Override
+    public void close() {
+        ioExecutor.shutdownNow();
+        try {
+            ioExecutor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            closed = true;
+            for (SpillBatch batch : spilled) {
+                batch.consumed = true;
+                if (batch.file != null) {
+                    delete(batch.file);
+                }
+            }
+            spilled.clear();
+            head.clear();
+            tail.clear();
+            count.set(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.util;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on an underlying executor such that tasks submitted with equal
+ * keys run one at a time in submission order, while tasks with different
+ * keys run concurrently. A key only occupies an executor thread while it has
+ * tasks; idle keys are forgotten.
+ */
+public class KeyedSerialExecutor {
+
+    private final Executor executor;
+    private final ConcurrentHashMap<Object, SerialQueue> queues = new ConcurrentHashMap<>();
+
+    public KeyedSerialExecutor(Executor executor) {
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    /**
+     * Run the task after all tasks previously submitted with an equal key.
+     * If the underlying executor rejects the work, the tasks of the key run
+     * on the calling thread.
+     *
+     * @param key  serialization key, may be null
+     * @param task task to run
+     */
+    public void execute(Object key, Runnable task) {
+        Object mapKey = key == null ? queues : key;
+        while (true) {
+            SerialQueue queue = queues.get(mapKey);
+            if (queue == null) {
+                queue = new SerialQueue(mapKey);
+                SerialQueue existing = queues.putIfAbsent(mapKey, queue);
+                if (existing != null) {
+                    queue = existing;
+                }
+            }
+            synchronized (queue) {
+                if (queue.retired) {
+                    // Its last task just finished, retry with a fresh queue.
+                    continue;
+                }
+                queue.tasks.add(task);
+                if (queue.running) {
+                    return;
+                }
+                queue.running = true;
+            }
+            try {
+                executor.execute(queue);
+            } catch (RejectedExecutionException e) {
+                queue.run();
+            }
+            return;
+        }
+    }
+
+    /**
+     * @return number of keys with queued or running tasks
+     */
+    public int getActiveKeys() {
+        return queues.size();
+    }
+
+    private final class SerialQueue implements Runnable {
+        final Object key;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        boolean running;
+        boolean retired;
+
+        SerialQueue(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        retired = true;
+                        queues.remove(key, this);
+                        return;
+                    }
+                }
+                task.run();
+            }
+        }
+    }
+}
@@ -26,4 +26,14 @@ public class TimeUtil {
     public static long diffFromNow(long time) {
         return getTime() - time;
     }
+
+    /**
+     * Current time from a monotonic clock, only meaningful to measure
+     * elapsed time.
+     *
+     * @return monotonic time in nanoseconds
+     */
+    public static long monotonicNowNanos() {
+        return System.nanoTime();
+    }
 }
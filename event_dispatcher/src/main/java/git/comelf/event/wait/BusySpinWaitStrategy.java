@@ -0,0 +1,41 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.wait;
+
+import git.comelf.event.Event;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Polls the queue in a tight loop. Lowest latency, but burns a full core
+ * while idle; only use it when the dispatcher thread has a core to itself.
+ */
+public class BusySpinWaitStrategy implements WaitStrategy {
+
+    @Override
+    public Event waitFor(BlockingQueue<Event> queue) throws InterruptedException {
+        Event event;
+        while ((event = queue.poll()) == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return event;
+    }
+}
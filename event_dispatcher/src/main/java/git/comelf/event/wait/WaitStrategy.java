@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.wait;
+
+import git.comelf.event.Event;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * How the event handling thread waits for the next event. Strategies trade
+ * CPU usage while idle for the latency of picking up a newly enqueued event.
+ */
+public interface WaitStrategy {
+
+    /**
+     * Wait until an event is available and remove it from the queue.
+     *
+     * @param queue queue to take the event from
+     * @return the next event, never null
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Event waitFor(BlockingQueue<Event> queue) throws InterruptedException;
+
+}
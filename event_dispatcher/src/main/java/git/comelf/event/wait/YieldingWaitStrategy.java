@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.wait;
+
+import git.comelf.event.Event;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Spins for a number of polls and then calls {@link Thread#yield()} between
+ * polls, giving other threads a chance to run while staying responsive.
+ */
+public class YieldingWaitStrategy implements WaitStrategy {
+
+    public static final int DEFAULT_SPIN_TRIES = 100;
+
+    private final int spinTries;
+
+    public YieldingWaitStrategy() {
+        this(DEFAULT_SPIN_TRIES);
+    }
+
+    public YieldingWaitStrategy(int spinTries) {
+        this.spinTries = spinTries;
+    }
+
+    @Override
+    public Event waitFor(BlockingQueue<Event> queue) throws InterruptedException {
+        Event event;
+        int tries = 0;
+        while ((event = queue.poll()) == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (tries < spinTries) {
+                tries++;
+            } else {
+                Thread.yield();
+            }
+        }
+        return event;
+    }
+}
@@ -39,7 +39,7 @@ public class DrainDispatcher extends AsyncEventDispatcher {
     }
 
     /**
-     * Wait till event thread enters WAITING state (i.e. waiting for new events).
+     * Wait till event thread is waiting for new events.
      */
     public void waitForEventThreadToWait() {
         while (!isEventThreadWaiting()) {
@@ -68,7 +68,7 @@ public class DrainDispatcher extends AsyncEventDispatcher {
                     }
                     Event event;
                     try {
-                        event = queue.take();
+                        event = waitForEvent();
                     } catch (InterruptedException ie) {
                         return;
                     }
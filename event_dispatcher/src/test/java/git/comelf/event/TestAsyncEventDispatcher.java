@@ -19,21 +19,43 @@
 package git.comelf.event;
 
 import git.comelf.conf.Configuration;
+import git.comelf.event.journal.EventSerializer;
+import git.comelf.event.metrics.HistogramEventTypeMetrics;
+import git.comelf.event.metrics.LatencyHistogram;
 import git.comelf.event.metrics.SimpleEventTypeMetrics;
 import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.*;
 
 public class TestAsyncEventDispatcher {
 
+    private static final Logger LOG = LoggerFactory.getLogger(TestAsyncEventDispatcher.class);
+
     /* This test checks whether dispatcher hangs on close if following two things
      * happen :
      * 1. A thread which was putting event to event queue is interrupted.
@@ -117,10 +139,60 @@ public class TestAsyncEventDispatcher {
         }
     }
 
+    /**
+     * Holds each caller until the expected number of callers are inside at
+     * the same time, or a timeout passes, and records the most callers seen
+     * inside at once.
+     */
+    private static class ConcurrencyProbe {
+        private final CountDownLatch arrived;
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger peak = new AtomicInteger();
+
+        ConcurrencyProbe(int expected) {
+            arrived = new CountDownLatch(expected);
+        }
+
+        void enter() {
+            peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+            arrived.countDown();
+            try {
+                arrived.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+        }
+
+        int getPeak() {
+            return peak.get();
+        }
+    }
+
     private enum TestEnum {
         TestEventType, TestEventType2
     }
 
+    private static class TestEvent implements Event<TestEnum> {
+        private final TestEnum type;
+        private final long timestamp;
+
+        TestEvent(TestEnum type, long timestamp) {
+            this.type = type;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public TestEnum getType() {
+            return type;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
     @SuppressWarnings({"rawtypes", "unchecked"})
     private void dispatchDummyEvents(Dispatcher disp, int count) {
         for (int i = 0; i < count; i++) {
@@ -130,6 +202,12 @@ public class TestAsyncEventDispatcher {
         }
     }
 
+    private static void startDraining(AsyncEventDispatcher dispatcher, Configuration conf) {
+        dispatcher.init(conf);
+        dispatcher.setDrainEventsOnStop();
+        dispatcher.start();
+    }
+
     // Test if drain dispatcher drains events on stop.
     @SuppressWarnings({"rawtypes"})
     @Test(timeout = 10000)
@@ -271,5 +349,905 @@ public class TestAsyncEventDispatcher {
 
     }
 
+    // Test partitioned dispatcher keeps per-key order and drains all partitions on stop.
+    @SuppressWarnings({"rawtypes"})
+    @Test(timeout = 10000)
+    public void testPartitionedDispatcher() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setInt(Configuration.DISPATCHER_PARTITIONS, 2);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        dispatcher.disableExitOnDispatchException();
+        dispatcher.setPartitionKeyExtractor(event -> event.getType().ordinal());
+        dispatcher.init(conf);
+
+        final Map<Enum, List<String>> threads = new ConcurrentHashMap<>();
+        final Map<Enum, List<Integer>> order = new ConcurrentHashMap<>();
+        dispatcher.register(TestEnum.class, (EventHandler<Event>) event -> {
+            threads.computeIfAbsent(event.getType(), k -> new CopyOnWriteArrayList<>())
+                    .add(Thread.currentThread().getName());
+            order.computeIfAbsent(event.getType(), k -> new CopyOnWriteArrayList<>())
+                    .add((int) event.getTimestamp());
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+            }
+        });
+        dispatcher.setDrainEventsOnStop();
+        dispatcher.start();
+
+        for (int i = 0; i < 50; i++) {
+            for (TestEnum type : TestEnum.values()) {
+                Event event = mock(Event.class);
+                when(event.getType()).thenReturn(type);
+                when(event.getTimestamp()).thenReturn((long) i);
+                dispatcher.getEventHandler().handle(event);
+            }
+        }
+        dispatcher.close();
+
+        assertEquals(0, dispatcher.getEventQueueSize());
+        for (TestEnum type : TestEnum.values()) {
+            assertEquals(50, order.get(type).size());
+            for (int i = 0; i < 50; i++) {
+                assertEquals(i, (int) order.get(type).get(i));
+            }
+            assertEquals(1, new HashSet<>(threads.get(type)).size());
+        }
+        Assert.assertNotEquals(threads.get(TestEnum.TestEventType).get(0),
+                threads.get(TestEnum.TestEventType2).get(0));
+    }
+
+    // Test batched draining dispatches every event in order and records metrics.
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    @Test(timeout = 10000)
+    public void testBatchedDrain() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setInt(Configuration.DISPATCHER_DRAIN_BATCH_SIZE, 64);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        dispatcher.disableExitOnDispatchException();
+        SimpleEventTypeMetrics metrics = new SimpleEventTypeMetrics(TestEnum.class);
+        dispatcher.addMetrics(metrics, TestEnum.class);
+        dispatcher.init(conf);
+
+        final List<Long> order = new CopyOnWriteArrayList<>();
+        dispatcher.register(TestEnum.class, (EventHandler<Event>) event -> order.add(event.getTimestamp()));
+        dispatcher.setDrainEventsOnStop();
+        dispatcher.start();
+
+        for (int i = 0; i < 1000; i++) {
+            Event event = mock(Event.class);
+            when(event.getType()).thenReturn(i % 2 == 0 ? TestEnum.TestEventType : TestEnum.TestEventType2);
+            when(event.getTimestamp()).thenReturn((long) i);
+            dispatcher.getEventHandler().handle(event);
+        }
+        dispatcher.close();
+
+        assertEquals(1000, order.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, (long) order.get(i));
+        }
+        assertEquals(500, metrics.get(TestEnum.TestEventType));
+        assertEquals(500, metrics.get(TestEnum.TestEventType2));
+    }
+
+    // Test the rest of a batch drained before stop goes back to the queue.
+    @Test(timeout = 10000)
+    public void testBatchedDrainStoppedMidBatch() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setInt(Configuration.DISPATCHER_DRAIN_BATCH_SIZE, 64);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch queued = new CountDownLatch(1);
+        final List<Long> handled = new CopyOnWriteArrayList<>();
+        dispatcher.register(TestEnum.class, (EventHandler<Event>) event -> {
+            handled.add(event.getTimestamp());
+            if (event.getTimestamp() == 0) {
+                blocked.countDown();
+                try {
+                    // The next nine events are then drained as one batch.
+                    queued.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                new TestHandler(10000).handle(event);
+            }
+        });
+        dispatcher.init(conf);
+        dispatcher.start();
+        dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, 0));
+        blocked.await();
+        for (long i = 1; i < 10; i++) {
+            dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, i));
+        }
+        queued.countDown();
+        GenericTestUtils.waitFor(() -> handled.size() == 2, 1, 5000);
+        // Interrupts the handler of the second event, the rest of its batch
+        // is left queued.
+        dispatcher.stop();
+        assertEquals(Arrays.asList(0L, 1L), handled);
+        assertEquals(8, dispatcher.getEventQueueSize());
+    }
+
+    // Measure enqueue-to-handle latency of an otherwise idle dispatcher for each wait strategy.
+    @SuppressWarnings({"rawtypes"})
+    @Test(timeout = 60000)
+    public void testWaitStrategyLatency() throws Exception {
+        String[] strategies = {
+                Configuration.DISPATCHER_WAIT_STRATEGY_BLOCKING,
+                Configuration.DISPATCHER_WAIT_STRATEGY_BUSY_SPIN,
+                Configuration.DISPATCHER_WAIT_STRATEGY_YIELDING,
+                Configuration.DISPATCHER_WAIT_STRATEGY_BACKOFF_PARK
+        };
+        final int count = 200;
+        for (String strategy : strategies) {
+            Configuration conf = new Configuration();
+            conf.set(Configuration.DISPATCHER_WAIT_STRATEGY, strategy);
+            AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+            dispatcher.disableExitOnDispatchException();
+            dispatcher.init(conf);
+
+            final long[] latencies = new long[count];
+            final AtomicInteger handled = new AtomicInteger();
+            dispatcher.register(TestEnum.class, (EventHandler<Event>) event ->
+                    latencies[handled.getAndIncrement()] = System.nanoTime() - event.getTimestamp());
+            dispatcher.start();
+            try {
+                // Seen waiting whether it blocks, spins, yields or parks.
+                GenericTestUtils.waitFor(dispatcher::isEventThreadWaiting, 1, 5000);
+                for (int i = 0; i < count; i++) {
+                    dispatcher.getEventHandler().handle(
+                            new TestEvent(TestEnum.TestEventType, System.nanoTime()));
+                    final int expected = i + 1;
+                    GenericTestUtils.waitFor(() -> handled.get() == expected, 1, 5000);
+                    // let the dispatcher go idle again
+                    Thread.sleep(1);
+                }
+            } finally {
+                dispatcher.stop();
+            }
+
+            Arrays.sort(latencies);
+            LOG.info("Wait strategy {}: enqueue-to-handle latency p50={}us p99={}us max={}us",
+                    strategy, latencies[count / 2] / 1000,
+                    latencies[count * 99 / 100] / 1000, latencies[count - 1] / 1000);
+            assertEquals(count, handled.get());
+        }
+    }
+
+    // Test overflow policies of a full bounded queue.
+    @Test(timeout = 30000)
+    public void testOverflowPolicies() throws Exception {
+        checkOverflowPolicy(OverflowPolicy.DROP_NEWEST, Arrays.asList(0L, 1L, 2L), Arrays.asList(3L));
+        checkOverflowPolicy(OverflowPolicy.DROP_OLDEST, Arrays.asList(0L, 2L, 3L), Arrays.asList(1L));
+        checkOverflowPolicy(OverflowPolicy.COALESCE, Arrays.asList(0L, 2L, 3L), Arrays.<Long>asList());
+        checkOverflowPolicy(OverflowPolicy.REJECT, Arrays.asList(0L, 1L, 2L), Arrays.asList(3L));
+        checkOverflowPolicy(OverflowPolicy.BLOCK_WITH_TIMEOUT, Arrays.asList(0L, 1L, 2L), Arrays.asList(3L));
+    }
+
+    private void checkOverflowPolicy(OverflowPolicy policy, List<Long> expectedHandled,
+                                     List<Long> expectedRejected) throws Exception {
+        Configuration conf = new Configuration();
+        conf.set(Configuration.DISPATCHER_OVERFLOW_POLICY, policy.name().toLowerCase().replace('_', '-'));
+        conf.setLong(Configuration.DISPATCHER_OVERFLOW_BLOCK_TIMEOUT, 50);
+        BlockingQueue<Event> queue = new LinkedBlockingQueue<>(2);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher(queue);
+        dispatcher.disableExitOnDispatchException();
+        dispatcher.setOverflowKeyExtractor(event -> event.getTimestamp() % 2);
+        final List<Long> rejected = new CopyOnWriteArrayList<>();
+        dispatcher.setRejectedEventHandler((event, p) -> rejected.add(event.getTimestamp()));
+        final List<Long> handled = new CopyOnWriteArrayList<>();
+        final CountDownLatch release = new CountDownLatch(1);
+        dispatcher.register(TestEnum.class, (EventHandler<Event>) event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+            handled.add(event.getTimestamp());
+        });
+        dispatcher.init(conf);
+        dispatcher.start();
+        try {
+            dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, 0));
+            // the first event blocks the dispatcher thread, the next two fill the queue
+            GenericTestUtils.waitFor(queue::isEmpty, 1, 5000);
+            for (long i = 1; i <= 3; i++) {
+                dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, i));
+            }
+            assertEquals(policy.name(), expectedRejected, rejected);
+            release.countDown();
+            GenericTestUtils.waitFor(() -> handled.size() == expectedHandled.size(), 1, 5000);
+            assertEquals(policy.name(), expectedHandled, handled);
+            assertEquals(policy.name(), policy == OverflowPolicy.COALESCE ? 1 : expectedRejected.size(),
+                    dispatcher.getOverflowCount(policy));
+        } finally {
+            release.countDown();
+            dispatcher.stop();
+        }
+    }
 
+    // Test queued events with the same coalescing key collapse into the newest one.
+    @Test(timeout = 10000)
+    public void testEventCoalescing() throws Exception {
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        dispatcher.disableExitOnDispatchException();
+        dispatcher.setCoalescer(TestEnum.class, event -> event.getTimestamp() % 3);
+        final List<Long> handled = new CopyOnWriteArrayList<>();
+        final CountDownLatch release = new CountDownLatch(1);
+        dispatcher.register(TestEnum.class, (EventHandler<Event>) event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+            handled.add(event.getTimestamp());
+        });
+        dispatcher.init(new Configuration());
+        dispatcher.start();
+        try {
+            dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, 0));
+            GenericTestUtils.waitFor(() -> dispatcher.getEventQueueSize() == 0, 1, 5000);
+            for (long i = 1; i < 100; i++) {
+                dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, i));
+            }
+            assertEquals(3, dispatcher.getEventQueueSize());
+            assertEquals(96, dispatcher.getCoalescedEventCount());
+            release.countDown();
+            GenericTestUtils.waitFor(() -> handled.size() == 4, 1, 5000);
+            assertEquals(Arrays.asList(0L, 97L, 98L, 99L), handled);
+        } finally {
+            release.countDown();
+            dispatcher.stop();
+        }
+    }
+
+    // Test events coalesced into a dropped event are reported as rejected.
+    @Test(timeout = 10000)
+    public void testCoalescedEventsRejected() throws Exception {
+        Configuration conf = new Configuration();
+        conf.set(Configuration.DISPATCHER_OVERFLOW_POLICY, "drop-oldest");
+        BlockingQueue<Event> queue = new LinkedBlockingQueue<>(2);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher(queue);
+        dispatcher.disableExitOnDispatchException();
+        dispatcher.setCoalescer(TestEnum.class,
+                event -> event.getTimestamp() >= 10 ? "update" : null);
+        final List<Long> rejected = new CopyOnWriteArrayList<>();
+        dispatcher.setRejectedEventHandler((event, p) -> rejected.add(event.getTimestamp()));
+        final CountDownLatch release = new CountDownLatch(1);
+        dispatcher.register(TestEnum.class, (EventHandler<Event>) event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+        });
+        dispatcher.init(conf);
+        dispatcher.start();
+        try {
+            dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, 0));
+            GenericTestUtils.waitFor(queue::isEmpty, 1, 5000);
+            for (long i : new long[] {10, 11, 1, 2}) {
+                dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, i));
+            }
+            assertEquals(Arrays.asList(10L, 11L), rejected);
+        } finally {
+            release.countDown();
+            dispatcher.stop();
+        }
+    }
+
+    // Test handlers can be added and removed while the dispatcher runs.
+    @Test(timeout = 10000)
+    public void testRegisterAndUnregisterAtRuntime() throws Exception {
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        dispatcher.disableExitOnDispatchException();
+        dispatcher.init(new Configuration());
+        final AtomicInteger first = new AtomicInteger();
+        final AtomicInteger second = new AtomicInteger();
+        final AtomicInteger third = new AtomicInteger();
+        EventHandler<Event> firstHandler = event -> first.incrementAndGet();
+        EventHandler<Event> secondHandler = event -> second.incrementAndGet();
+        EventHandler<Event> thirdHandler = event -> third.incrementAndGet();
+        dispatcher.register(TestEnum.class, firstHandler);
+        dispatcher.start();
+        try {
+            dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, 0));
+            GenericTestUtils.waitFor(() -> first.get() == 1, 1, 5000);
+
+            dispatcher.register(TestEnum.class, secondHandler);
+            dispatcher.register(TestEnum.class, thirdHandler);
+            dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, 1));
+            GenericTestUtils.waitFor(() -> third.get() == 1, 1, 5000);
+            assertEquals(2, first.get());
+            assertEquals(1, second.get());
+
+            Assert.assertTrue(dispatcher.unregister(TestEnum.class, secondHandler));
+            Assert.assertFalse(dispatcher.unregister(TestEnum.class, secondHandler));
+            dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, 2));
+            GenericTestUtils.waitFor(() -> third.get() == 2, 1, 5000);
+            assertEquals(3, first.get());
+            assertEquals(1, second.get());
+
+            Assert.assertTrue(dispatcher.unregister(TestEnum.class, firstHandler));
+            Assert.assertTrue(dispatcher.unregister(TestEnum.class, thirdHandler));
+            Assert.assertNull(dispatcher.eventDispatchers.get(TestEnum.class));
+        } finally {
+            dispatcher.stop();
+        }
+    }
+
+    // Test parallel multicast runs listeners concurrently but finishes each event before the next.
+    @Test(timeout = 10000)
+    public void testParallelMulticast() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setBoolean(Configuration.DISPATCHER_MULTICAST_PARALLEL, true);
+        conf.setInt(Configuration.DISPATCHER_MULTICAST_PARALLELISM, 4);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        dispatcher.disableExitOnDispatchException();
+        dispatcher.init(conf);
+
+        final AtomicInteger calls = new AtomicInteger();
+        // events completed when each listener started
+        final List<Integer> eventsAtStart = new CopyOnWriteArrayList<>();
+        // the listeners of the first event wait for each other
+        final ConcurrencyProbe probe = new ConcurrencyProbe(3);
+        for (int i = 0; i < 3; i++) {
+            dispatcher.register(TestEnum.class, (EventHandler<Event>) event -> {
+                eventsAtStart.add(calls.get() / 3);
+                probe.enter();
+                calls.incrementAndGet();
+            });
+        }
+        dispatcher.setDrainEventsOnStop();
+        dispatcher.start();
+
+        for (int i = 0; i < 3; i++) {
+            dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, i));
+        }
+        GenericTestUtils.waitFor(() -> calls.get() == 9, 10, 5000);
+        dispatcher.close();
+
+        assertEquals(3, probe.getPeak());
+        assertEquals(Arrays.asList(0, 0, 0, 1, 1, 1, 2, 2, 2), eventsAtStart);
+    }
+
+    // Test queue time tracking reports queue waits and the oldest pending event.
+    @Test(timeout = 10000)
+    public void testQueueTimeTracking() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setBoolean(Configuration.DISPATCHER_QUEUE_TIME_TRACKING, true);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        dispatcher.disableExitOnDispatchException();
+        HistogramEventTypeMetrics<TestEnum> metrics = new HistogramEventTypeMetrics<>(TestEnum.class);
+        dispatcher.addMetrics(metrics, TestEnum.class);
+        final List<Event> handled = new CopyOnWriteArrayList<>();
+        final CountDownLatch release = new CountDownLatch(1);
+        dispatcher.register(TestEnum.class, (EventHandler<Event>) event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+            handled.add(event);
+        });
+        dispatcher.init(conf);
+        dispatcher.start();
+        try {
+            assertEquals(0, dispatcher.getOldestPendingEventAge());
+            Event first = new TestEvent(TestEnum.TestEventType, 0);
+            Event second = new TestEvent(TestEnum.TestEventType, 1);
+            dispatcher.getEventHandler().handle(first);
+            GenericTestUtils.waitFor(() -> dispatcher.getEventQueueSize() == 0, 1, 5000);
+            dispatcher.getEventHandler().handle(second);
+            Thread.sleep(100);
+            Assert.assertTrue(dispatcher.getOldestPendingEventAge() >= 100);
+            release.countDown();
+            GenericTestUtils.waitFor(() -> metrics.get(TestEnum.TestEventType) == 2, 1, 5000);
+
+            assertEquals(Arrays.asList(first, second), handled);
+            LatencyHistogram queueTime = metrics.getQueueTime(TestEnum.TestEventType);
+            assertEquals(2, queueTime.getCount());
+            Assert.assertTrue(queueTime.getMax() >= TimeUnit.MILLISECONDS.toNanos(100));
+            assertEquals(0, dispatcher.getOldestPendingEventAge());
+        } finally {
+            release.countDown();
+            dispatcher.stop();
+        }
+        AsyncEventDispatcher untracked = new AsyncEventDispatcher();
+        untracked.init(new Configuration());
+        assertEquals(-1, untracked.getOldestPendingEventAge());
+    }
+
+    // Test pending counters follow the queue composition, including discarded events.
+    @Test(timeout = 10000)
+    public void testPendingEventCounts() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setInt(Configuration.DISPATCHER_EVENT_QUEUE_CAPACITY, 10);
+        conf.set(Configuration.DISPATCHER_OVERFLOW_POLICY, "drop-oldest");
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        dispatcher.disableExitOnDispatchException();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger handled = new AtomicInteger();
+        dispatcher.register(TestEnum.class, (EventHandler<Event>) event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+            handled.incrementAndGet();
+        });
+        dispatcher.init(conf);
+        dispatcher.start();
+        try {
+            dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, 0));
+            GenericTestUtils.waitFor(() -> dispatcher.getEventQueueSize() == 0, 1, 5000);
+            for (int i = 1; i <= 6; i++) {
+                dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, i));
+            }
+            for (int i = 7; i <= 12; i++) {
+                dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType2, i));
+            }
+            // two of the oldest events were dropped to make room
+            assertEquals(4, dispatcher.getPendingEventCount(TestEnum.TestEventType));
+            assertEquals(6, dispatcher.getPendingEventCount(TestEnum.TestEventType2));
+            assertEquals(10, dispatcher.getEventQueueSize());
+            release.countDown();
+            GenericTestUtils.waitFor(() -> handled.get() == 11, 1, 5000);
+            assertEquals(0, dispatcher.getPendingEventCount(TestEnum.TestEventType));
+            assertEquals(0, dispatcher.getPendingEventCount(TestEnum.TestEventType2));
+        } finally {
+            release.countDown();
+            dispatcher.stop();
+        }
+    }
+
+    // Test unordered event classes run concurrently and are drained on stop.
+    @Test(timeout = 10000)
+    public void testUnorderedDispatch() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setInt(Configuration.DISPATCHER_UNORDERED_PARALLELISM, 4);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        dispatcher.disableExitOnDispatchException();
+        SimpleEventTypeMetrics<TestEnum> metrics = new SimpleEventTypeMetrics<>(TestEnum.class);
+        dispatcher.addMetrics(metrics, TestEnum.class);
+        final AtomicInteger unordered = new AtomicInteger();
+        final AtomicInteger ordered = new AtomicInteger();
+        final ConcurrencyProbe probe = new ConcurrencyProbe(4);
+        dispatcher.register(TestEnum.class, (EventHandler<Event>) event -> {
+            probe.enter();
+            unordered.incrementAndGet();
+        }, DispatchMode.UNORDERED);
+        dispatcher.register(DummyType.class, (EventHandler<Event>) event -> ordered.incrementAndGet(),
+                DispatchMode.ORDERED);
+        dispatcher.init(conf);
+        dispatcher.setDrainEventsOnStop();
+        dispatcher.start();
+
+        Event dummy = mock(Event.class);
+        when(dummy.getType()).thenReturn(DummyType.DUMMY);
+        for (int i = 0; i < 4; i++) {
+            dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, i));
+        }
+        dispatcher.getEventHandler().handle(dummy);
+        dispatcher.close();
+
+        assertEquals(4, unordered.get());
+        assertEquals(1, ordered.get());
+        assertEquals(4, metrics.get(TestEnum.TestEventType));
+        assertEquals(4, probe.getPeak());
+    }
+
+    // Test blocking handlers run concurrently, in order per key for the keyed mode.
+    @Test(timeout = 10000)
+    public void testBlockingDispatch() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setInt(Configuration.DISPATCHER_BLOCKING_POOL_SIZE, 20);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        dispatcher.disableExitOnDispatchException();
+        dispatcher.setPartitionKeyExtractor(event -> event.getTimestamp() % 2);
+        final AtomicInteger blocking = new AtomicInteger();
+        final Map<Long, List<Long>> keyed = new ConcurrentHashMap<>();
+        // one event per key at a time, the first of both keys meet
+        final ConcurrencyProbe keyedProbe = new ConcurrencyProbe(2);
+        dispatcher.register(TestEnum.class, (EventHandler<Event>) event -> {
+            keyedProbe.enter();
+            if (event.getType() == TestEnum.TestEventType) {
+                blocking.incrementAndGet();
+            } else {
+                keyed.computeIfAbsent(event.getTimestamp() % 2, k -> new CopyOnWriteArrayList<>())
+                        .add(event.getTimestamp());
+            }
+        }, DispatchMode.BLOCKING_KEYED);
+        dispatcher.init(conf);
+        dispatcher.setDrainEventsOnStop();
+        dispatcher.start();
+
+        for (long i = 0; i < 10; i++) {
+            dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType2, i));
+        }
+        dispatcher.close();
+        assertEquals(Arrays.asList(0L, 2L, 4L, 6L, 8L), keyed.get(0L));
+        assertEquals(Arrays.asList(1L, 3L, 5L, 7L, 9L), keyed.get(1L));
+        assertEquals(2, keyedProbe.getPeak());
+
+        AsyncEventDispatcher perEvent = new AsyncEventDispatcher();
+        perEvent.disableExitOnDispatchException();
+        final ConcurrencyProbe probe = new ConcurrencyProbe(20);
+        perEvent.register(TestEnum.class, (EventHandler<Event>) event -> {
+            probe.enter();
+            blocking.incrementAndGet();
+        }, DispatchMode.BLOCKING);
+        perEvent.init(conf);
+        perEvent.setDrainEventsOnStop();
+        perEvent.start();
+        for (long i = 0; i < 20; i++) {
+            perEvent.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, i));
+        }
+        perEvent.close();
+        assertEquals(20, blocking.get());
+        assertEquals(20, probe.getPeak());
+    }
+
+    // Test async handlers are bounded in flight and drained on stop.
+    @Test(timeout = 10000)
+    public void testAsyncEventHandler() throws Exception {
+        ScheduledExecutorService timer = Executors.newScheduledThreadPool(4);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        dispatcher.disableExitOnDispatchException();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        EventHandler<Event> registered = dispatcher.registerAsync(TestEnum.class,
+                (AsyncEventHandler<TestEvent>) event -> {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    CompletableFuture<Void> done = new CompletableFuture<>();
+                    timer.schedule(() -> {
+                        inFlight.decrementAndGet();
+                        completed.incrementAndGet();
+                        if (event.getTimestamp() == 3) {
+                            done.completeExceptionally(new IllegalStateException("failed"));
+                        } else {
+                            done.complete(null);
+                        }
+                    }, 100, TimeUnit.MILLISECONDS);
+                    return done;
+                }, 2);
+        dispatcher.init(new Configuration());
+        dispatcher.setDrainEventsOnStop();
+        dispatcher.start();
+        try {
+            for (int i = 0; i < 6; i++) {
+                dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, i));
+            }
+            dispatcher.close();
+            assertEquals(6, completed.get());
+            assertEquals(2, maxInFlight.get());
+            Assert.assertTrue(dispatcher.unregister(TestEnum.class, registered));
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    private static final EventSerializer TEST_EVENT_SERIALIZER = new EventSerializer() {
+        @Override
+        public byte[] serialize(Event event) {
+            return ByteBuffer.allocate(12).putInt(event.getType().ordinal())
+                    .putLong(event.getTimestamp()).array();
+        }
+
+        @Override
+        public Event deserialize(ByteBuffer buffer) {
+            return new TestEvent(TestEnum.values()[buffer.getInt()], buffer.getLong());
+        }
+    };
+
+    private static void deleteJournal(File dir) {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * @return timestamps of the events a new dispatcher replays from the
+     * journal configured in conf
+     */
+    private static List<Long> replayJournal(Configuration conf) {
+        final List<Long> replayed = new CopyOnWriteArrayList<>();
+        AsyncEventDispatcher restarted = new AsyncEventDispatcher();
+        restarted.setEventSerializer(TEST_EVENT_SERIALIZER);
+        restarted.register(TestEnum.class,
+                (EventHandler<Event>) event -> replayed.add(event.getTimestamp()));
+        startDraining(restarted, conf);
+        restarted.stop();
+        return replayed;
+    }
+
+    // Test events still queued on stop are replayed from the journal,
+    // including the latest update merged into a coalesced event.
+    @Test(timeout = 10000)
+    public void testJournalReplay() throws Exception {
+        File dir = Files.createTempDirectory("journal").toFile();
+        Configuration conf = new Configuration();
+        conf.set(Configuration.DISPATCHER_JOURNAL_DIR, dir.getPath());
+        try {
+            AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+            dispatcher.setEventSerializer(TEST_EVENT_SERIALIZER);
+            final CountDownLatch blocked = new CountDownLatch(1);
+            dispatcher.register(TestEnum.class, (EventHandler<Event>) event -> {
+                blocked.countDown();
+                new TestHandler(10000).handle(event);
+            });
+            dispatcher.setCoalescer(TestEnum.class,
+                    event -> event.getTimestamp() >= 100 ? "update" : null);
+            dispatcher.init(conf);
+            dispatcher.start();
+            for (long i = 0; i < 5; i++) {
+                dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, i));
+            }
+            for (long i = 100; i < 103; i++) {
+                dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, i));
+            }
+            blocked.await();
+            // Interrupts the handler of the first event, which then counts as
+            // dispatched, the others are left in the queue.
+            dispatcher.stop();
+
+            // The queued update, then every update merged into it, ending
+            // with the latest; only the checkpoint survives a restart, not
+            // the acknowledgements beyond it.
+            assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 100L, 101L, 102L), replayJournal(conf));
+        } finally {
+            deleteJournal(dir);
+        }
+    }
+
+    // Test an update replayed from the journal and sent again after a
+    // restart is dispatched once, with the latest state.
+    @Test(timeout = 10000)
+    public void testJournalReplayCoalescing() throws Exception {
+        File dir = Files.createTempDirectory("journal").toFile();
+        Configuration conf = new Configuration();
+        conf.set(Configuration.DISPATCHER_JOURNAL_DIR, dir.getPath());
+        try {
+            AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+            dispatcher.setEventSerializer(TEST_EVENT_SERIALIZER);
+            final CountDownLatch blocked = new CountDownLatch(1);
+            dispatcher.register(TestEnum.class, (EventHandler<Event>) event -> {
+                blocked.countDown();
+                new TestHandler(10000).handle(event);
+            });
+            dispatcher.init(conf);
+            dispatcher.start();
+            for (long i = 0; i < 3; i++) {
+                dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, i));
+            }
+            for (long i = 100; i < 103; i++) {
+                dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, i));
+            }
+            blocked.await();
+            dispatcher.stop();
+
+            AsyncEventDispatcher restarted = new AsyncEventDispatcher();
+            restarted.setEventSerializer(TEST_EVENT_SERIALIZER);
+            restarted.setCoalescer(TestEnum.class,
+                    event -> event.getTimestamp() >= 100 ? "update" : null);
+            final List<Long> handled = new CopyOnWriteArrayList<>();
+            final CountDownLatch release = new CountDownLatch(1);
+            restarted.register(TestEnum.class, (EventHandler<Event>) event -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+                handled.add(event.getTimestamp());
+            });
+            startDraining(restarted, conf);
+            restarted.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, 103));
+            release.countDown();
+            restarted.stop();
+
+            assertEquals(Arrays.asList(1L, 2L, 103L), handled);
+            assertEquals(3, restarted.getCoalescedEventCount());
+            assertEquals(Arrays.<Long>asList(), replayJournal(conf));
+        } finally {
+            deleteJournal(dir);
+        }
+    }
+
+    // Test events are acknowledged once their async handler completes, not
+    // when it returns.
+    @Test(timeout = 10000)
+    public void testJournalAckAfterAsyncCompletion() throws Exception {
+        File dir = Files.createTempDirectory("journal").toFile();
+        Configuration conf = new Configuration();
+        conf.set(Configuration.DISPATCHER_JOURNAL_DIR, dir.getPath());
+        try {
+            AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+            dispatcher.setEventSerializer(TEST_EVENT_SERIALIZER);
+            final CountDownLatch started = new CountDownLatch(2);
+            dispatcher.registerAsync(TestEnum.class, (AsyncEventHandler<TestEvent>) event -> {
+                started.countDown();
+                CompletableFuture<Void> done = new CompletableFuture<>();
+                if (event.getTimestamp() == 0) {
+                    done.complete(null);
+                }
+                return done;
+            }, 2);
+            dispatcher.init(conf);
+            dispatcher.start();
+            dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, 0));
+            dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, 1));
+            started.await();
+            dispatcher.stop();
+
+            // The event whose handler never completed is replayed.
+            assertEquals(Arrays.asList(1L), replayJournal(conf));
+        } finally {
+            deleteJournal(dir);
+        }
+    }
+
+    // Test batch handlers get full batches, and the rest after the linger time.
+    @Test(timeout = 10000)
+    public void testBatchEventHandler() throws Exception {
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        final List<List<Long>> batches = new CopyOnWriteArrayList<>();
+        dispatcher.registerBatch(TestEnum.class, (BatchEventHandler<TestEvent>) events -> {
+            List<Long> batch = new ArrayList<>();
+            for (TestEvent event : events) {
+                batch.add(event.getTimestamp());
+            }
+            batches.add(batch);
+        }, 4, 200);
+        HistogramEventTypeMetrics<TestEnum> metrics =
+                new HistogramEventTypeMetrics<>(TestEnum.class);
+        dispatcher.addMetrics(metrics, TestEnum.class);
+        startDraining(dispatcher, new Configuration());
+        for (long i = 0; i < 10; i++) {
+            dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, i));
+        }
+        GenericTestUtils.waitFor(() -> batches.size() == 2, 1, 5000);
+        // The last two events wait for the linger time.
+        Thread.sleep(50);
+        assertEquals(2, batches.size());
+        dispatcher.close();
+        assertEquals(Arrays.asList(Arrays.asList(0L, 1L, 2L, 3L), Arrays.asList(4L, 5L, 6L, 7L),
+                Arrays.asList(8L, 9L)), batches);
+        assertEquals(10, metrics.get(TestEnum.TestEventType));
+        assertEquals(3, metrics.getBatchSize().getCount());
+        assertEquals(4, metrics.getBatchSize().getMax());
+    }
+
+    // Test a full or failing bulkhead affects only its own event class.
+    @SuppressWarnings("unchecked")
+    @Test(timeout = 10000)
+    public void testBulkhead() throws Exception {
+        final AtomicInteger shutdowns = new AtomicInteger();
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher() {
+            @Override
+            Runnable createShutDownThread() {
+                return shutdowns::incrementAndGet;
+            }
+        };
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger handled = new AtomicInteger();
+        dispatcher.register(TestEnum.class, (EventHandler<Event>) event -> {
+            if (event.getTimestamp() < 0) {
+                throw new IllegalStateException("failed");
+            }
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handled.incrementAndGet();
+        });
+        Bulkhead bulkhead = dispatcher.setBulkhead(TestEnum.class, 1, 2);
+        final CountDownLatch dummyHandled = new CountDownLatch(1);
+        dispatcher.register(DummyType.class, (EventHandler<Event>) event -> dummyHandled.countDown());
+        final AtomicInteger rejected = new AtomicInteger();
+        dispatcher.setRejectedEventHandler((event, policy) -> rejected.incrementAndGet());
+        startDraining(dispatcher, new Configuration());
+
+        for (long i = 0; i < 10; i++) {
+            dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, i));
+        }
+        dispatchDummyEvents(dispatcher, 1);
+        // The blocked bulkhead does not hold up other event classes.
+        Assert.assertTrue(dummyHandled.await(5, TimeUnit.SECONDS));
+        assertEquals(3, bulkhead.getAcceptedCount());
+        assertEquals(7, bulkhead.getRejectedCount());
+        assertEquals(7, rejected.get());
+        Assert.assertTrue(bulkhead.isSaturated());
+
+        release.countDown();
+        GenericTestUtils.waitFor(() -> bulkhead.getInFlightCount() == 0, 1, 5000);
+        dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, -1));
+        GenericTestUtils.waitFor(() -> bulkhead.getFailedCount() == 1, 1, 5000);
+        dispatcher.close();
+        assertEquals(3, handled.get());
+        assertEquals(0, shutdowns.get());
+    }
+
+    // Test the watchdog flags a stuck dispatch once and interrupts overdue
+    // bulkhead handlers.
+    @Test(timeout = 10000)
+    public void testDispatchWatchdog() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setLong(Configuration.DISPATCHER_WATCHDOG_INTERVAL, 20);
+        conf.setBoolean(Configuration.DISPATCHER_WATCHDOG_INTERRUPT_ISOLATED, true);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        final CountDownLatch release = new CountDownLatch(1);
+        dispatcher.register(TestEnum.class, (EventHandler<Event>) event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        dispatcher.setDispatchBudget(TestEnum.class, 100);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        dispatcher.register(DummyType.class, (EventHandler<Event>) event -> {
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        });
+        Bulkhead bulkhead = dispatcher.setBulkhead(DummyType.class, 1, 1);
+        dispatcher.setDispatchBudget(DummyType.class, 100);
+        dispatcher.init(conf);
+        dispatcher.start();
+        try {
+            assertEquals(0, dispatcher.getStuckDispatchTime());
+            dispatchDummyEvents(dispatcher, 1);
+            Assert.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+            assertEquals(1, bulkhead.getTimedOutCount());
+
+            dispatcher.getEventHandler().handle(new TestEvent(TestEnum.TestEventType, 0));
+            GenericTestUtils.waitFor(() -> dispatcher.getStuckDispatchCount() == 1, 1, 5000);
+            Assert.assertTrue(dispatcher.getStuckDispatchTime() >= 100);
+            Thread.sleep(100);
+            assertEquals(1, dispatcher.getStuckDispatchCount());
+            release.countDown();
+            GenericTestUtils.waitFor(() -> dispatcher.getStuckDispatchTime() == 0, 1, 5000);
+        } finally {
+            dispatcher.stop();
+        }
+    }
+
+    // Test primitive lane events reach their handler in order and drain on stop.
+    @Test(timeout = 10000)
+    public void testPrimitiveEventLane() throws Exception {
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        final List<long[]> handled = new CopyOnWriteArrayList<>();
+        final CountDownLatch release = new CountDownLatch(1);
+        PrimitiveEventLane<TestEnum> lane = dispatcher.createPrimitiveLane(TestEnum.class,
+                (type, key, value1, value2) -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    handled.add(new long[]{type.ordinal(), key, value1, value2});
+                }, 8);
+        startDraining(dispatcher, new Configuration());
+
+        for (long i = 0; i < 8; i++) {
+            Assert.assertTrue(lane.publish(i % 2 == 0 ? TestEnum.TestEventType
+                    : TestEnum.TestEventType2, i, i + 100, i + 200));
+        }
+        // The handler holds one event, the rest fill the lane.
+        GenericTestUtils.waitFor(() -> lane.size() == 8, 1, 5000);
+        Assert.assertFalse(lane.tryPublish(TestEnum.TestEventType, 8, 0, 0));
+
+        release.countDown();
+        dispatcher.stop();
+        Assert.assertTrue(lane.isClosed());
+        Assert.assertFalse(lane.publish(TestEnum.TestEventType, 9, 0, 0));
+        assertEquals(8, handled.size());
+        for (int i = 0; i < 8; i++) {
+            long[] fields = handled.get(i);
+            assertEquals(i % 2, fields[0]);
+            assertEquals(i, fields[1]);
+            assertEquals(i + 100, fields[2]);
+            assertEquals(i + 200, fields[3]);
+        }
+    }
 }
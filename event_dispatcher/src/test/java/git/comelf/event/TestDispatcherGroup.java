@@ -0,0 +1,334 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event;
+
+import git.comelf.conf.Configuration;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestDispatcherGroup {
+
+    private enum KeyedType {
+        KEYED
+    }
+
+    private static class KeyedEvent implements Event<KeyedType> {
+        final int key;
+        final long sequence;
+
+        KeyedEvent(int key, long sequence) {
+            this.key = key;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public KeyedType getType() {
+            return KeyedType.KEYED;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return sequence;
+        }
+    }
+
+    private static final EventKeyExtractor BY_KEY = event -> ((KeyedEvent) event).key;
+
+    private static DispatcherGroup createGroup(int size) {
+        Configuration conf = new Configuration();
+        conf.setInt(Configuration.DISPATCHER_GROUP_SIZE, size);
+        return createGroup(conf);
+    }
+
+    private static DispatcherGroup createGroup(Configuration conf) {
+        DispatcherGroup group = new DispatcherGroup("TestGroup", BY_KEY);
+        group.init(conf);
+        group.disableExitOnDispatchException();
+        return group;
+    }
+
+    // Test members refuse priority lanes, which would serve resize barriers
+    // out of order.
+    @Test
+    public void testPriorityLanesRefused() throws Exception {
+        Configuration conf = new Configuration();
+        conf.set(Configuration.DISPATCHER_EVENT_QUEUE_TYPE,
+                Configuration.DISPATCHER_EVENT_QUEUE_TYPE_PRIORITY);
+        try {
+            createGroup(conf);
+            Assert.fail("Created a group with priority lanes");
+        } catch (RuntimeException e) {
+            Throwable cause = e;
+            while (!(cause instanceof IllegalStateException) && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            Assert.assertTrue(String.valueOf(cause.getMessage()),
+                    cause.getMessage().contains("priority lanes"));
+        }
+    }
+
+    // Test adding a dispatcher only moves keys to the new one.
+    @Test
+    public void testConsistentRouting() throws Exception {
+        DispatcherGroup group = createGroup(4);
+        int keys = 10_000;
+        List<AsyncEventDispatcher> before = new ArrayList<>();
+        Set<AsyncEventDispatcher> used = new HashSet<>();
+        for (int key = 0; key < keys; key++) {
+            before.add(group.getDispatcher(key));
+            used.add(group.getDispatcher(key));
+        }
+        assertEquals(4, used.size());
+
+        group.resize(5);
+        AsyncEventDispatcher added = group.getDispatchers().get(4);
+        int moved = 0;
+        for (int key = 0; key < keys; key++) {
+            AsyncEventDispatcher after = group.getDispatcher(key);
+            if (after != before.get(key)) {
+                assertEquals(added, after);
+                moved++;
+            }
+        }
+        // about a fifth of the keys should move
+        Assert.assertTrue("Moved " + moved, moved > keys / 10 && moved < keys * 3 / 10);
+        // small keys are spread as well
+        used.clear();
+        for (int key = 0; key < 64; key++) {
+            used.add(group.getDispatcher(key));
+        }
+        assertEquals(5, used.size());
+
+        group.resize(4);
+        for (int key = 0; key < keys; key++) {
+            assertEquals(before.get(key), group.getDispatcher(key));
+        }
+        group.stop();
+    }
+
+    // Test events of a key stay in order while the group grows and shrinks.
+    @Test(timeout = 30000)
+    public void testResizeKeepsKeyOrder() throws Exception {
+        DispatcherGroup group = createGroup(2);
+        final int keys = 64;
+        final Map<Integer, List<Long>> handled = new ConcurrentHashMap<>();
+        final AtomicInteger count = new AtomicInteger();
+        group.register(KeyedType.class, (EventHandler<KeyedEvent>) event -> {
+            handled.computeIfAbsent(event.key, k -> new CopyOnWriteArrayList<>())
+                    .add(event.sequence);
+            if (event.sequence % 16 == 0) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            count.incrementAndGet();
+        });
+        group.start();
+
+        final int rounds = 200;
+        Thread producer = new Thread(() -> {
+            for (long sequence = 0; sequence < rounds; sequence++) {
+                for (int key = 0; key < keys; key++) {
+                    group.getEventHandler().handle(new KeyedEvent(key, sequence));
+                }
+            }
+        });
+        producer.start();
+        group.resize(4);
+        group.resize(3);
+        group.resize(5);
+        producer.join();
+        GenericTestUtils.waitFor(() -> count.get() == keys * rounds, 10, 20000);
+        assertEquals(5, group.getSize());
+        group.stop();
+
+        for (int key = 0; key < keys; key++) {
+            List<Long> sequences = handled.get(key);
+            assertEquals(rounds, sequences.size());
+            for (int i = 0; i < rounds; i++) {
+                assertEquals("key " + key, i, sequences.get(i).longValue());
+            }
+        }
+    }
+
+    // Test a resize is not held up by a full queue that drops new events.
+    @Test(timeout = 30000)
+    public void testResizeWithFullQueue() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setInt(Configuration.DISPATCHER_GROUP_SIZE, 1);
+        conf.setInt(Configuration.DISPATCHER_EVENT_QUEUE_CAPACITY, 4);
+        conf.set(Configuration.DISPATCHER_OVERFLOW_POLICY, "drop-newest");
+        conf.setLong(Configuration.DISPATCHER_DRAIN_EVENTS_TIMEOUT, 60_000);
+        DispatcherGroup group = createGroup(conf);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger count = new AtomicInteger();
+        group.register(KeyedType.class, (EventHandler<KeyedEvent>) event -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            count.incrementAndGet();
+        });
+        group.start();
+        group.getEventHandler().handle(new KeyedEvent(0, 0));
+        started.await();
+        for (int sequence = 1; sequence <= 4; sequence++) {
+            group.getEventHandler().handle(new KeyedEvent(sequence, sequence));
+        }
+
+        Thread resize = new Thread(() -> {
+            try {
+                group.resize(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        resize.start();
+        // The barrier waits for space instead of being dropped.
+        GenericTestUtils.waitFor(() -> resize.getState() == Thread.State.WAITING, 10, 5000);
+        release.countDown();
+        resize.join(10_000);
+        Assert.assertFalse("Resize waited for the drain timeout", resize.isAlive());
+        assertEquals(2, group.getSize());
+        GenericTestUtils.waitFor(() -> count.get() == 5, 10, 5000);
+        group.stop();
+    }
+
+    // Test a handler emitting events for moving keys does not stall a resize.
+    @Test(timeout = 30000)
+    public void testResizeWithReentrantEvents() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setInt(Configuration.DISPATCHER_GROUP_SIZE, 1);
+        conf.setLong(Configuration.DISPATCHER_DRAIN_EVENTS_TIMEOUT, 60_000);
+        DispatcherGroup group = createGroup(conf);
+        final int keys = 64;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch emit = new CountDownLatch(1);
+        final AtomicInteger count = new AtomicInteger();
+        group.register(KeyedType.class, (EventHandler<KeyedEvent>) event -> {
+            if (event.sequence == 0) {
+                started.countDown();
+                try {
+                    emit.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                // some of these keys move to the added dispatcher
+                for (int key = 1; key <= keys; key++) {
+                    group.getEventHandler().handle(new KeyedEvent(key, 1));
+                }
+            }
+            count.incrementAndGet();
+        });
+        group.start();
+        group.getEventHandler().handle(new KeyedEvent(0, 0));
+        started.await();
+
+        Thread resize = new Thread(() -> {
+            try {
+                group.resize(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        resize.start();
+        // Waiting for the barrier queued behind the blocked event.
+        GenericTestUtils.waitFor(() -> resize.getState() == Thread.State.TIMED_WAITING, 10, 5000);
+        emit.countDown();
+        resize.join(10_000);
+        Assert.assertFalse("Resize waited for the drain timeout", resize.isAlive());
+        GenericTestUtils.waitFor(() -> count.get() == keys + 1, 10, 5000);
+        group.stop();
+    }
+
+    // Test a resize waiting for space in a full queue does not keep its
+    // handlers from emitting through the group.
+    @Test(timeout = 30000)
+    public void testResizeWithFullBlockingQueue() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setInt(Configuration.DISPATCHER_GROUP_SIZE, 2);
+        conf.setInt(Configuration.DISPATCHER_EVENT_QUEUE_CAPACITY, 4);
+        DispatcherGroup group = createGroup(conf);
+        AsyncEventDispatcher first = group.getDispatchers().get(0);
+        AsyncEventDispatcher second = group.getDispatchers().get(1);
+        int key = 0;
+        while (group.getDispatcher(key) != first) {
+            key++;
+        }
+        int otherKey = 0;
+        while (group.getDispatcher(otherKey) != second) {
+            otherKey++;
+        }
+        final int emittedKey = otherKey;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch emit = new CountDownLatch(1);
+        final AtomicInteger count = new AtomicInteger();
+        group.register(KeyedType.class, (EventHandler<KeyedEvent>) event -> {
+            if (event.sequence == 0) {
+                started.countDown();
+                try {
+                    emit.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                group.getEventHandler().handle(new KeyedEvent(emittedKey, 1));
+            }
+            count.incrementAndGet();
+        });
+        group.start();
+        group.getEventHandler().handle(new KeyedEvent(key, 0));
+        started.await();
+        for (int i = 0; i < 4; i++) {
+            group.getEventHandler().handle(new KeyedEvent(key, 2));
+        }
+
+        Thread resize = new Thread(() -> {
+            try {
+                group.resize(3);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        resize.start();
+        // Waiting for space for the barrier in the full queue.
+        GenericTestUtils.waitFor(() -> resize.getState() == Thread.State.WAITING, 10, 5000);
+        emit.countDown();
+        resize.join(10_000);
+        Assert.assertFalse("Resize is stuck", resize.isAlive());
+        GenericTestUtils.waitFor(() -> count.get() == 6, 10, 5000);
+        group.stop();
+    }
+}
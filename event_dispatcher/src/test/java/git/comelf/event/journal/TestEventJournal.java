@@ -0,0 +1,237 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.journal;
+
+import git.comelf.event.Event;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestEventJournal {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private enum JournalEventType {
+        CREATED, UPDATED
+    }
+
+    private static class JournalEvent implements Event<JournalEventType> {
+        private final JournalEventType type;
+        private final long timestamp;
+
+        JournalEvent(JournalEventType type, long timestamp) {
+            this.type = type;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public JournalEventType getType() {
+            return type;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    static final EventSerializer SERIALIZER = new EventSerializer() {
+        @Override
+        public byte[] serialize(Event event) {
+            return ByteBuffer.allocate(12).putInt(event.getType().ordinal())
+                    .putLong(event.getTimestamp()).array();
+        }
+
+        @Override
+        public Event deserialize(ByteBuffer buffer) {
+            return new JournalEvent(JournalEventType.values()[buffer.getInt()], buffer.getLong());
+        }
+    };
+
+    private EventJournal open(File dir, int segmentSize, boolean sync) throws IOException {
+        EventJournal journal = new EventJournal(dir, SERIALIZER, segmentSize, 5, 10, sync);
+        journal.open();
+        return journal;
+    }
+
+    private static List<Long> replay(EventJournal journal) throws IOException {
+        List<Long> timestamps = new ArrayList<>();
+        journal.replay((event, sequence) -> {
+            assertEquals(event.getTimestamp(), sequence);
+            timestamps.add(event.getTimestamp());
+        });
+        return timestamps;
+    }
+
+    @Test
+    public void testReplayUnacknowledged() throws Exception {
+        File dir = folder.newFolder();
+        EventJournal journal = open(dir, 4096, true);
+        for (long i = 0; i < 10; i++) {
+            assertEquals(i, journal.append(new JournalEvent(JournalEventType.CREATED, i)));
+        }
+        // Out of order acks only move the checkpoint once the gap is closed.
+        journal.ack(0);
+        journal.ack(2);
+        journal.ack(1);
+        journal.ack(5);
+        assertEquals(3, journal.getCheckpoint());
+        journal.close();
+
+        journal = open(dir, 4096, false);
+        assertEquals(Arrays.asList(3L, 4L, 5L, 6L, 7L, 8L, 9L), replay(journal));
+        assertEquals(10, journal.getNextSequence());
+        for (long i = 3; i < 10; i++) {
+            journal.ack(i);
+        }
+        journal.close();
+
+        journal = open(dir, 4096, false);
+        assertEquals(0, replay(journal).size());
+        journal.close();
+    }
+
+    // Acks far ahead of the checkpoint grow the ack window and are kept.
+    @Test
+    public void testAcksAheadOfCheckpoint() throws Exception {
+        EventJournal journal = open(folder.newFolder(), 1 << 20, false);
+        int count = 10000;
+        for (long i = 0; i < count; i++) {
+            journal.append(new JournalEvent(JournalEventType.UPDATED, i));
+        }
+        for (long i = count - 1; i > 0; i -= 2) {
+            journal.ack(i);
+        }
+        for (long i = count - 2; i > 0; i -= 2) {
+            journal.ack(i);
+        }
+        // Repeated acks are ignored.
+        journal.ack(count - 1);
+        assertEquals(0, journal.getCheckpoint());
+        journal.ack(0);
+        assertEquals(count, journal.getCheckpoint());
+        // The window keeps working from the new checkpoint on.
+        journal.append(new JournalEvent(JournalEventType.UPDATED, count));
+        journal.append(new JournalEvent(JournalEventType.UPDATED, count + 1));
+        journal.ack(count + 1);
+        assertEquals(count, journal.getCheckpoint());
+        journal.ack(count);
+        assertEquals(count + 2, journal.getCheckpoint());
+        journal.close();
+    }
+
+    @Test
+    public void testSegmentsRollAndAreDeleted() throws Exception {
+        File dir = folder.newFolder();
+        // Room for three records of 8 + 12 bytes per segment.
+        EventJournal journal = open(dir, 64, false);
+        for (long i = 0; i < 10; i++) {
+            journal.append(new JournalEvent(JournalEventType.UPDATED, i));
+        }
+        assertEquals(4, segmentCount(dir));
+        for (long i = 0; i < 7; i++) {
+            journal.ack(i);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (segmentCount(dir) > 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, segmentCount(dir));
+        journal.close();
+
+        journal = open(dir, 64, false);
+        assertEquals(Arrays.asList(7L, 8L, 9L), replay(journal));
+        journal.close();
+    }
+
+    @Test
+    public void testTornRecordIsIgnored() throws Exception {
+        File dir = folder.newFolder();
+        EventJournal journal = open(dir, 4096, false);
+        for (long i = 0; i < 3; i++) {
+            journal.append(new JournalEvent(JournalEventType.CREATED, i));
+        }
+        journal.close();
+
+        // Corrupt the payload of the last record.
+        try (RandomAccessFile file = new RandomAccessFile(
+                new File(dir, JournalSegment.fileName(0)), "rw")) {
+            file.seek(2 * 20 + JournalSegment.RECORD_HEADER + 4);
+            file.write(0xff);
+        }
+        journal = open(dir, 4096, false);
+        assertEquals(Arrays.asList(0L, 1L), replay(journal));
+        assertEquals(2, journal.getNextSequence());
+        assertEquals(2, journal.append(new JournalEvent(JournalEventType.CREATED, 2)));
+        journal.close();
+    }
+
+    @Test
+    public void testEmptyRecordIsRejected() throws Exception {
+        EventSerializer serializer = new EventSerializer() {
+            @Override
+            public byte[] serialize(Event event) throws IOException {
+                return event.getType() == JournalEventType.UPDATED
+                        ? new byte[0] : SERIALIZER.serialize(event);
+            }
+
+            @Override
+            public Event deserialize(ByteBuffer buffer) throws IOException {
+                return SERIALIZER.deserialize(buffer);
+            }
+        };
+        File dir = folder.newFolder();
+        EventJournal journal = new EventJournal(dir, serializer, 4096, 5, 10, false);
+        journal.open();
+        journal.append(new JournalEvent(JournalEventType.CREATED, 0));
+        try {
+            journal.append(new JournalEvent(JournalEventType.UPDATED, 1));
+            fail("Empty record was appended");
+        } catch (IOException e) {
+            // expected
+        }
+        journal.append(new JournalEvent(JournalEventType.CREATED, 1));
+        journal.close();
+
+        // Nothing was written for the rejected event, so the record after it
+        // is not hidden behind an end of segment.
+        journal = open(dir, 4096, false);
+        assertEquals(Arrays.asList(0L, 1L), replay(journal));
+        journal.close();
+    }
+
+    private static int segmentCount(File dir) {
+        String[] names = dir.list((d, name) -> JournalSegment.isSegmentFile(name));
+        assertTrue(names != null);
+        return names.length;
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.metrics;
+
+import git.comelf.conf.Configuration;
+import git.comelf.event.AsyncEventDispatcher;
+import git.comelf.event.Event;
+import git.comelf.event.EventHandler;
+import git.comelf.event.GenericTestUtils;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestHistogramEventTypeMetrics {
+
+    private enum TestType {
+        FAST, SLOW
+    }
+
+    private static class TestEvent implements Event<TestType> {
+        private final TestType type;
+
+        TestEvent(TestType type) {
+            this.type = type;
+        }
+
+        @Override
+        public TestType getType() {
+            return type;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return 0;
+        }
+    }
+
+    @Test
+    public void testBucketBoundaries() {
+        long previous = -1;
+        for (int i = 0; i <= LatencyHistogram.bucketIndex(LatencyHistogram.MAX_VALUE); i++) {
+            long highest = LatencyHistogram.highestValueInBucket(i);
+            assertEquals(i, LatencyHistogram.bucketIndex(highest));
+            assertEquals(i, LatencyHistogram.bucketIndex(previous + 1));
+            previous = highest;
+        }
+        assertEquals(LatencyHistogram.MAX_VALUE, previous);
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 100_000; i++) {
+            histogram.record(i * 1000);
+        }
+        histogram.record(-1);
+
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(100_000_000L, histogram.getMax());
+        assertWithinPrecision(50_000_000L, histogram.getValueAtPercentile(50));
+        assertWithinPrecision(99_000_000L, histogram.getValueAtPercentile(99));
+        assertWithinPrecision(99_900_000L, histogram.getValueAtPercentile(99.9));
+        assertEquals(100_000_000L, histogram.getValueAtPercentile(100));
+        assertEquals(0, new LatencyHistogram().getValueAtPercentile(99));
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        long tolerance = expected >> LatencyHistogram.PRECISION_BITS;
+        assertTrue("expected " + expected + " but was " + actual,
+                Math.abs(expected - actual) <= tolerance);
+    }
+
+    @Test
+    public void testSubMillisecondHandlers() throws Exception {
+        HistogramEventTypeMetrics<TestType> metrics =
+                new HistogramEventTypeMetrics<>(TestType.class);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher("Test");
+        dispatcher.addMetrics(metrics, TestType.class);
+        dispatcher.register(TestType.class, (EventHandler<TestEvent>) event -> {
+            if (event.getType() == TestType.SLOW) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        dispatcher.init(new Configuration());
+        dispatcher.start();
+        try {
+            for (int i = 0; i < 100; i++) {
+                dispatcher.getEventHandler().handle(new TestEvent(TestType.FAST));
+            }
+            dispatcher.getEventHandler().handle(new TestEvent(TestType.SLOW));
+            GenericTestUtils.waitFor(() -> metrics.get(TestType.SLOW) == 1, 10, 10000);
+        } finally {
+            dispatcher.stop();
+        }
+
+        LatencyHistogram fast = metrics.getHandlerTime(TestType.FAST);
+        assertEquals(100, fast.getCount());
+        assertTrue(fast.getMax() > 0);
+        assertTrue(fast.getValueAtPercentile(50) < TimeUnit.MILLISECONDS.toNanos(5));
+        assertTrue(metrics.getHandlerTime(TestType.SLOW).getMax()
+                >= TimeUnit.MILLISECONDS.toNanos(5));
+    }
+}
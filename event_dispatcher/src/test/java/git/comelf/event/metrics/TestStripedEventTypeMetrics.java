@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestStripedEventTypeMetrics {
+
+    private enum TestType {
+        FIRST, SECOND
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        StripedEventTypeMetrics<TestType> metrics =
+                new StripedEventTypeMetrics<>(TestType.class);
+        int threads = 4;
+        int updates = 100_000;
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < updates; i++) {
+                    metrics.record(TestType.FIRST, 10, -1);
+                }
+                metrics.increment(TestType.SECOND, 2);
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(threads * updates, metrics.get(TestType.FIRST));
+        assertEquals(10L * threads * updates, metrics.getTotalProcessingTimeNanos(TestType.FIRST));
+        assertEquals(threads, metrics.get(TestType.SECOND));
+        assertEquals(2L * threads, metrics.getTotalProcessingTime(TestType.SECOND));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2) * threads,
+                metrics.getTotalProcessingTimeNanos(TestType.SECOND));
+    }
+}
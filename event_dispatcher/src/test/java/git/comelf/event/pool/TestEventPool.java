@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.pool;
+
+import git.comelf.conf.Configuration;
+import git.comelf.event.AsyncEventDispatcher;
+import git.comelf.event.Event;
+import git.comelf.event.EventHandler;
+import git.comelf.event.GenericTestUtils;
+import org.junit.Test;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class TestEventPool {
+
+    private enum PoolType {
+        VALUE
+    }
+
+    private static class ValueEvent extends PooledEvent<PoolType> {
+        long value;
+
+        @Override
+        protected void reset() {
+            value = -1;
+        }
+    }
+
+    @Test
+    public void testClaimAndRecycle() throws Exception {
+        EventPool<ValueEvent> pool = new EventPool<>(2, ValueEvent::new);
+        ValueEvent first = pool.claim();
+        ValueEvent second = pool.tryClaim();
+        assertNull(pool.tryClaim());
+        assertEquals(0, pool.getAvailable());
+
+        first.setType(PoolType.VALUE);
+        first.value = 42;
+        first.retain();
+        first.release();
+        assertEquals(1, first.getReferenceCount());
+        assertEquals(0, pool.getAvailable());
+        first.release();
+        assertEquals(1, pool.getAvailable());
+        assertEquals(-1, first.value);
+        assertNull(first.getType());
+        try {
+            first.release();
+            fail("Released a recycled event");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            first.retain();
+            fail("Retained a recycled event");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        second.release();
+        assertEquals(2, pool.getAvailable());
+        try {
+            new EventPool<>(1, () -> second);
+            fail("Added an event to two pools");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    // Events come back to the pool only once every listener is done with them.
+    @Test(timeout = 10000)
+    public void testDispatcherRecyclesEvents() throws Exception {
+        Configuration conf = new Configuration();
+        conf.set(Configuration.DISPATCHER_EVENT_QUEUE_TYPE,
+                Configuration.DISPATCHER_EVENT_QUEUE_TYPE_RING_BUFFER);
+        conf.setInt(Configuration.DISPATCHER_EVENT_QUEUE_CAPACITY, 16);
+        conf.setBoolean(Configuration.DISPATCHER_MULTICAST_PARALLEL, true);
+        conf.setBoolean(Configuration.DISPATCHER_MULTICAST_ORDERED, false);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        final AtomicLong sum = new AtomicLong();
+        final AtomicInteger corrupted = new AtomicInteger();
+        EventHandler<Event> listener = event -> {
+            ValueEvent valueEvent = (ValueEvent) event;
+            long value = valueEvent.value;
+            Thread.yield();
+            if (valueEvent.getTimestamp() != value || valueEvent.value != value) {
+                corrupted.incrementAndGet();
+            }
+            sum.addAndGet(value);
+        };
+        dispatcher.register(PoolType.class, listener);
+        dispatcher.register(PoolType.class, listener);
+        dispatcher.init(conf);
+        dispatcher.setDrainEventsOnStop();
+        dispatcher.start();
+
+        EventPool<ValueEvent> pool = new EventPool<>(8, ValueEvent::new);
+        for (long i = 1; i <= 1000; i++) {
+            ValueEvent event = pool.claim();
+            event.setType(PoolType.VALUE);
+            event.setTimestamp(i);
+            event.value = i;
+            dispatcher.getEventHandler().handle(event);
+        }
+        dispatcher.close();
+        assertEquals(0, corrupted.get());
+        assertEquals(2 * 1000 * 1001 / 2, sum.get());
+        assertEquals(8, pool.getAvailable());
+    }
+
+    // The watchdog keeps working while the events it watches are recycled,
+    // and flags a reused event each time it gets stuck.
+    @Test(timeout = 10000)
+    public void testWatchdogWithRecycledEvents() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setLong(Configuration.DISPATCHER_WATCHDOG_INTERVAL, 1);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        final Semaphore release = new Semaphore(0);
+        dispatcher.register(PoolType.class, (EventHandler<Event>) event -> {
+            if (((ValueEvent) event).value == 0) {
+                try {
+                    release.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        dispatcher.setDispatchBudget(PoolType.class, 50);
+        dispatcher.init(conf);
+        dispatcher.start();
+        try {
+            // A single pooled event, recycled while the watchdog polls.
+            EventPool<ValueEvent> pool = new EventPool<>(1, ValueEvent::new);
+            for (long i = 1; i <= 5000; i++) {
+                ValueEvent event = pool.claim();
+                event.setType(PoolType.VALUE);
+                event.value = i;
+                dispatcher.getEventHandler().handle(event);
+            }
+            for (int stuck = 1; stuck <= 2; stuck++) {
+                ValueEvent event = pool.claim();
+                event.setType(PoolType.VALUE);
+                event.value = 0;
+                dispatcher.getEventHandler().handle(event);
+                final long count = stuck;
+                GenericTestUtils.waitFor(() -> dispatcher.getStuckDispatchCount() == count,
+                        1, 5000);
+                release.release();
+            }
+        } finally {
+            dispatcher.stop();
+        }
+    }
+}
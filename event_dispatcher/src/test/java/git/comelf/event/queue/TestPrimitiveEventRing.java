@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.queue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPrimitiveEventRing {
+
+    @Test
+    public void testOfferAndDrain() {
+        PrimitiveEventRing ring = new PrimitiveEventRing(3);
+        assertEquals(4, ring.capacity());
+        assertTrue(ring.isEmpty());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i % 2, i, i * 10L, -i));
+        }
+        assertFalse(ring.offer(0, 4, 0, 0));
+        assertEquals(4, ring.size());
+
+        final List<long[]> drained = new ArrayList<>();
+        assertEquals(3, ring.drainTo((type, key, value1, value2) ->
+                drained.add(new long[]{type, key, value1, value2}), 3));
+        assertEquals(1, ring.size());
+        // Slots are reused once consumed.
+        assertTrue(ring.offer(0, 4, 40, -4));
+        assertEquals(2, ring.drainTo((type, key, value1, value2) ->
+                drained.add(new long[]{type, key, value1, value2}), 10));
+        assertTrue(ring.isEmpty());
+        for (int i = 0; i < 5; i++) {
+            long[] fields = drained.get(i);
+            assertEquals(i % 2, fields[0]);
+            assertEquals(i, fields[1]);
+            assertEquals(i * 10L, fields[2]);
+            assertEquals(-i, fields[3]);
+        }
+    }
+
+    @Test
+    public void testMinimumCapacity() {
+        PrimitiveEventRing ring = new PrimitiveEventRing(1);
+        assertEquals(2, ring.capacity());
+        assertTrue(ring.offer(0, 1, 0, 0));
+        assertTrue(ring.offer(0, 2, 0, 0));
+        assertFalse(ring.offer(0, 3, 0, 0));
+        final List<Long> keys = new ArrayList<>();
+        assertEquals(2, ring.drainTo((type, key, value1, value2) -> keys.add(key), 10));
+        assertEquals(2, keys.size());
+        assertEquals(1L, (long) keys.get(0));
+        assertEquals(2L, (long) keys.get(1));
+    }
+
+    @Test
+    public void testFailingConsumer() {
+        PrimitiveEventRing ring = new PrimitiveEventRing(4);
+        ring.offer(0, 1, 0, 0);
+        ring.offer(0, 2, 0, 0);
+        try {
+            ring.drainTo((type, key, value1, value2) -> {
+                throw new IllegalStateException("failed");
+            }, 10);
+        } catch (IllegalStateException expected) {
+        }
+        // The event the consumer failed on is consumed, the next one is not.
+        assertEquals(1, ring.size());
+        final long[] key = new long[1];
+        ring.drainTo((type, k, value1, value2) -> key[0] = k, 10);
+        assertEquals(2, key[0]);
+    }
+
+    // Producers waiting for room give up once the ring is closed.
+    @Test(timeout = 10000)
+    public void testCloseReleasesProducers() throws Exception {
+        final PrimitiveEventRing ring = new PrimitiveEventRing(2);
+        assertTrue(ring.put(0, 1, 0, 0));
+        assertTrue(ring.put(0, 2, 0, 0));
+        final AtomicBoolean added = new AtomicBoolean(true);
+        Thread producer = new Thread(() -> {
+            try {
+                added.set(ring.put(0, 3, 0, 0));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        ring.close();
+        producer.join();
+        assertFalse(added.get());
+        assertFalse(ring.offer(0, 4, 0, 0));
+        assertEquals(2, ring.size());
+    }
+
+    @Test(timeout = 10000)
+    public void testMultipleProducers() throws Exception {
+        final PrimitiveEventRing ring = new PrimitiveEventRing(64);
+        final int producers = 4;
+        final int perProducer = 20000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (long i = 0; i < perProducer; i++) {
+                        ring.put(producer, i, i * 2, 0);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        final long[] next = new long[producers];
+        final boolean[] corrupt = new boolean[1];
+        int consumed = 0;
+        while (consumed < producers * perProducer) {
+            ring.awaitAvailable();
+            consumed += ring.drainTo((type, key, value1, value2) -> {
+                // Each producer's events arrive in order, with their fields intact.
+                if (key != next[type]++ || value1 != key * 2) {
+                    corrupt[0] = true;
+                }
+            }, 100);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(corrupt[0]);
+        assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.queue;
+
+import git.comelf.conf.Configuration;
+import git.comelf.event.AsyncEventDispatcher;
+import git.comelf.event.Event;
+import git.comelf.event.EventHandler;
+import git.comelf.event.GenericTestUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPriorityLaneEventQueue {
+
+    private enum ControlType {
+        HEARTBEAT
+    }
+
+    private enum DataType {
+        DATA
+    }
+
+    private static class TestEvent<T extends Enum<T>> implements Event<T> {
+        private final T type;
+        private final long id;
+
+        TestEvent(T type, long id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        public T getType() {
+            return type;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return id;
+        }
+    }
+
+    private static List<Enum> takeAll(PriorityLaneEventQueue queue) throws Exception {
+        List<Enum> types = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            types.add(queue.take().getType());
+        }
+        return types;
+    }
+
+    @Test
+    public void testStrictPriority() throws Exception {
+        PriorityLaneEventQueue queue = new PriorityLaneEventQueue(
+                PriorityLaneEventQueue.Policy.STRICT, new int[]{1, 1}, 4);
+        queue.setLane(ControlType.class, 0);
+        queue.offer(new TestEvent<>(DataType.DATA, 0));
+        queue.offer(new TestEvent<>(DataType.DATA, 1));
+        queue.offer(new TestEvent<>(ControlType.HEARTBEAT, 2));
+        queue.offer(new TestEvent<>(DataType.DATA, 3));
+        assertFalse(queue.offer(new TestEvent<>(ControlType.HEARTBEAT, 4)));
+        assertEquals(1, queue.laneSize(0));
+        assertEquals(3, queue.laneSize(1));
+
+        assertEquals(Arrays.asList(ControlType.HEARTBEAT, DataType.DATA, DataType.DATA, DataType.DATA),
+                takeAll(queue));
+    }
+
+    @Test
+    public void testWeightedRoundRobin() throws Exception {
+        PriorityLaneEventQueue queue = new PriorityLaneEventQueue(
+                PriorityLaneEventQueue.Policy.WEIGHTED, new int[]{2, 1});
+        queue.setLane(ControlType.class, 0);
+        for (int i = 0; i < 4; i++) {
+            queue.offer(new TestEvent<>(DataType.DATA, i));
+            queue.offer(new TestEvent<>(ControlType.HEARTBEAT, i));
+        }
+        assertEquals(Arrays.asList(
+                ControlType.HEARTBEAT, ControlType.HEARTBEAT, DataType.DATA,
+                ControlType.HEARTBEAT, ControlType.HEARTBEAT, DataType.DATA,
+                DataType.DATA, DataType.DATA), takeAll(queue));
+        assertTrue(queue.isEmpty());
+    }
+
+    // Control events overtake queued data events in the dispatcher.
+    @Test(timeout = 10000)
+    public void testDispatcherPriorityLanes() throws Exception {
+        Configuration conf = new Configuration();
+        conf.set(Configuration.DISPATCHER_EVENT_QUEUE_TYPE,
+                Configuration.DISPATCHER_EVENT_QUEUE_TYPE_PRIORITY);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        dispatcher.init(conf);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Enum> handled = new CopyOnWriteArrayList<>();
+        EventHandler<Event> handler = event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+            handled.add(event.getType());
+        };
+        dispatcher.register(DataType.class, handler, 1);
+        dispatcher.register(ControlType.class, handler, 0);
+        dispatcher.start();
+        try {
+            // the first event blocks the dispatcher thread while the rest queue up
+            dispatcher.getEventHandler().handle(new TestEvent<>(DataType.DATA, 0));
+            GenericTestUtils.waitFor(() -> dispatcher.getEventQueueSize() == 0, 1, 5000);
+            for (int i = 1; i <= 3; i++) {
+                dispatcher.getEventHandler().handle(new TestEvent<>(DataType.DATA, i));
+            }
+            dispatcher.getEventHandler().handle(new TestEvent<>(ControlType.HEARTBEAT, 4));
+            release.countDown();
+            GenericTestUtils.waitFor(() -> handled.size() == 5, 1, 5000);
+            assertEquals(Arrays.asList(DataType.DATA, ControlType.HEARTBEAT,
+                    DataType.DATA, DataType.DATA, DataType.DATA), handled);
+        } finally {
+            release.countDown();
+            dispatcher.stop();
+        }
+    }
+
+    // Overflow drops the oldest data event instead of a queued control event.
+    @Test(timeout = 10000)
+    public void testDropOldestKeepsPriority() throws Exception {
+        Configuration conf = new Configuration();
+        conf.set(Configuration.DISPATCHER_EVENT_QUEUE_TYPE,
+                Configuration.DISPATCHER_EVENT_QUEUE_TYPE_PRIORITY);
+        conf.setInt(Configuration.DISPATCHER_EVENT_QUEUE_CAPACITY, 3);
+        conf.set(Configuration.DISPATCHER_OVERFLOW_POLICY, "drop-oldest");
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        dispatcher.init(conf);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Long> handled = new CopyOnWriteArrayList<>();
+        EventHandler<Event> handler = event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+            }
+            handled.add(event.getTimestamp());
+        };
+        dispatcher.register(DataType.class, handler, 1);
+        dispatcher.register(ControlType.class, handler, 0);
+        dispatcher.start();
+        try {
+            dispatcher.getEventHandler().handle(new TestEvent<>(DataType.DATA, 0));
+            GenericTestUtils.waitFor(() -> dispatcher.getEventQueueSize() == 0, 1, 5000);
+            dispatcher.getEventHandler().handle(new TestEvent<>(ControlType.HEARTBEAT, 1));
+            dispatcher.getEventHandler().handle(new TestEvent<>(DataType.DATA, 2));
+            dispatcher.getEventHandler().handle(new TestEvent<>(DataType.DATA, 3));
+            dispatcher.getEventHandler().handle(new TestEvent<>(DataType.DATA, 4));
+            release.countDown();
+            GenericTestUtils.waitFor(() -> handled.size() == 4, 1, 5000);
+            assertEquals(Arrays.asList(0L, 1L, 3L, 4L), handled);
+        } finally {
+            release.countDown();
+            dispatcher.stop();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.queue;
+
+import git.comelf.conf.Configuration;
+import git.comelf.event.AsyncEventDispatcher;
+import git.comelf.event.Event;
+import git.comelf.event.EventHandler;
+import git.comelf.event.GenericTestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestRingBufferEventQueue {
+
+    private enum TestType {
+        TYPE
+    }
+
+    private static class TestEvent implements Event<TestType> {
+        private final long producer;
+        private final long sequence;
+
+        TestEvent(long producer, long sequence) {
+            this.producer = producer;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public TestType getType() {
+            return TestType.TYPE;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return sequence;
+        }
+    }
+
+    @Test
+    public void testBoundedFifo() throws Exception {
+        RingBufferEventQueue queue = new RingBufferEventQueue(3);
+        assertEquals(4, queue.capacity());
+        assertTrue(queue.isEmpty());
+
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Event event = new TestEvent(0, i);
+            events.add(event);
+            assertTrue(queue.offer(event));
+        }
+        assertFalse(queue.offer(new TestEvent(0, 4)));
+        assertFalse(queue.offer(new TestEvent(0, 4), 10, TimeUnit.MILLISECONDS));
+        assertEquals(4, queue.size());
+        assertEquals(0, queue.remainingCapacity());
+
+        List<Event> snapshot = new ArrayList<>();
+        queue.iterator().forEachRemaining(snapshot::add);
+        assertEquals(events, snapshot);
+
+        assertSame(events.get(0), queue.peek());
+        assertSame(events.get(0), queue.take());
+        List<Event> drained = new ArrayList<>();
+        assertEquals(3, queue.drainTo(drained));
+        assertEquals(events.subList(1, 4), drained);
+        assertNull(queue.poll());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        assertTrue(queue.isEmpty());
+    }
+
+    // A capacity of one is rounded up, a single slot cannot tell a published
+    // event from a free slot.
+    @Test
+    public void testMinimumCapacity() throws Exception {
+        RingBufferEventQueue queue = new RingBufferEventQueue(1);
+        assertEquals(2, queue.capacity());
+        Event first = new TestEvent(0, 0);
+        Event second = new TestEvent(0, 1);
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(second));
+        assertFalse(queue.offer(new TestEvent(0, 2)));
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test(timeout = 30000)
+    public void testMultipleProducers() throws Exception {
+        final int producers = 4;
+        final int eventsPerProducer = 100_000;
+        final RingBufferEventQueue queue = new RingBufferEventQueue(1024);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < eventsPerProducer; i++) {
+                        queue.put(new TestEvent(producer, i));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+
+        long[] next = new long[producers];
+        for (int i = 0; i < producers * eventsPerProducer; i++) {
+            TestEvent event = (TestEvent) queue.take();
+            // events of one producer are seen in the order they were put
+            assertEquals(next[(int) event.producer]++, event.sequence);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void testDispatcherWithRingBuffer() throws Exception {
+        Configuration conf = new Configuration();
+        conf.set(Configuration.DISPATCHER_EVENT_QUEUE_TYPE,
+                Configuration.DISPATCHER_EVENT_QUEUE_TYPE_RING_BUFFER);
+        conf.setInt(Configuration.DISPATCHER_EVENT_QUEUE_CAPACITY, 16);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        dispatcher.init(conf);
+        final AtomicInteger handled = new AtomicInteger();
+        dispatcher.register(TestType.class, (EventHandler<Event>) event -> handled.incrementAndGet());
+        dispatcher.start();
+        try {
+            for (int i = 0; i < 1000; i++) {
+                Event event = mock(Event.class);
+                when(event.getType()).thenReturn(TestType.TYPE);
+                dispatcher.getEventHandler().handle(event);
+            }
+            GenericTestUtils.waitFor(() -> handled.get() == 1000, 10, 5000);
+            Assert.assertEquals(0, dispatcher.getEventQueueSize());
+        } finally {
+            dispatcher.stop();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package git.comelf.event.queue;
+
+import git.comelf.conf.Configuration;
+import git.comelf.event.AsyncEventDispatcher;
+import git.comelf.event.Event;
+import git.comelf.event.EventHandler;
+import git.comelf.event.GenericTestUtils;
+import git.comelf.event.journal.EventSerializer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestSpillingEventQueue {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private enum SpillType {
+        DATA
+    }
+
+    private static class TestEvent implements Event<SpillType> {
+        private final long id;
+
+        TestEvent(long id) {
+            this.id = id;
+        }
+
+        @Override
+        public SpillType getType() {
+            return SpillType.DATA;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return id;
+        }
+    }
+
+    private static final EventSerializer SERIALIZER = new EventSerializer() {
+        @Override
+        public byte[] serialize(Event event) {
+            return ByteBuffer.allocate(8).putLong(event.getTimestamp()).array();
+        }
+
+        @Override
+        public Event deserialize(ByteBuffer buffer) {
+            return new TestEvent(buffer.getLong());
+        }
+    };
+
+    // Fails to read back the event with timestamp 5, and its batch with it.
+    private static final EventSerializer FAILING_SERIALIZER = new EventSerializer() {
+        @Override
+        public byte[] serialize(Event event) throws IOException {
+            return SERIALIZER.serialize(event);
+        }
+
+        @Override
+        public Event deserialize(ByteBuffer buffer) throws IOException {
+            Event event = SERIALIZER.deserialize(buffer);
+            if (event.getTimestamp() == 5) {
+                throw new IllegalStateException("Unreadable event");
+            }
+            return event;
+        }
+    };
+
+    // Fails to write the event with timestamp 5, and its batch with it.
+    private static final EventSerializer UNWRITABLE_SERIALIZER = new EventSerializer() {
+        @Override
+        public byte[] serialize(Event event) throws IOException {
+            if (event.getTimestamp() == 5) {
+                throw new IllegalStateException("Unwritable event");
+            }
+            return SERIALIZER.serialize(event);
+        }
+
+        @Override
+        public Event deserialize(ByteBuffer buffer) throws IOException {
+            return SERIALIZER.deserialize(buffer);
+        }
+    };
+
+    private static int fileCount(File dir) {
+        return dir.list().length;
+    }
+
+    @Test
+    public void testSpilledEventsKeepOrder() throws Exception {
+        File dir = folder.newFolder();
+        SpillingEventQueue queue = new SpillingEventQueue(dir, SERIALIZER, 4, 3);
+        for (long i = 0; i < 20; i++) {
+            queue.put(new TestEvent(i));
+        }
+        // 4 in memory, 15 in five batches written to file in the background
+        // and 1 waiting for a batch.
+        assertEquals(20, queue.size());
+        assertEquals(15, queue.spilledSize());
+        GenericTestUtils.waitFor(() -> fileCount(dir) == 5, 1, 5000);
+
+        List<Long> taken = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            taken.add(queue.take().getTimestamp());
+        }
+        // Producers keep appending behind the spilled batches.
+        queue.put(new TestEvent(20));
+        while (!queue.isEmpty()) {
+            taken.add(queue.take().getTimestamp());
+        }
+        for (int i = 0; i <= 20; i++) {
+            assertEquals(i, (long) taken.get(i));
+        }
+        assertEquals(21, taken.size());
+        assertNull(queue.poll());
+        assertEquals(0, fileCount(dir));
+    }
+
+    @Test
+    public void testCloseDeletesFiles() throws Exception {
+        File dir = folder.newFolder();
+        SpillingEventQueue queue = new SpillingEventQueue(dir, SERIALIZER, 2, 2);
+        for (long i = 0; i < 10; i++) {
+            queue.offer(new TestEvent(i));
+        }
+        GenericTestUtils.waitFor(() -> fileCount(dir) == 4, 1, 5000);
+        queue.close();
+        assertEquals(0, queue.size());
+        assertEquals(0, fileCount(dir));
+    }
+
+    // A batch that cannot be read back is discarded and reported.
+    @Test(timeout = 10000)
+    public void testUnreadableBatch() throws Exception {
+        File dir = folder.newFolder();
+        SpillingEventQueue queue = new SpillingEventQueue(dir, FAILING_SERIALIZER, 2, 2);
+        final AtomicInteger lost = new AtomicInteger();
+        queue.setLossListener((type, count) -> {
+            assertEquals(SpillType.DATA, type);
+            lost.addAndGet(count);
+        });
+        for (long i = 0; i < 9; i++) {
+            queue.put(new TestEvent(i));
+        }
+        GenericTestUtils.waitFor(() -> fileCount(dir) == 3, 1, 5000);
+        List<Long> taken = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            taken.add(queue.take().getTimestamp());
+        }
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 6L, 7L, 8L), taken);
+        assertEquals(2, lost.get());
+        assertEquals(0, fileCount(dir));
+        queue.close();
+    }
+
+    // A batch that cannot be written stays in memory, without a file.
+    @Test(timeout = 10000)
+    public void testUnwritableBatch() throws Exception {
+        File dir = folder.newFolder();
+        SpillingEventQueue queue = new SpillingEventQueue(dir, UNWRITABLE_SERIALIZER, 2, 2);
+        for (long i = 0; i < 9; i++) {
+            queue.put(new TestEvent(i));
+        }
+        GenericTestUtils.waitFor(() -> fileCount(dir) == 2, 1, 5000);
+        List<Long> taken = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            taken.add(queue.take().getTimestamp());
+        }
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L), taken);
+        assertEquals(0, fileCount(dir));
+        queue.close();
+    }
+
+    // The dispatcher still drains once spilled events are lost.
+    @Test(timeout = 10000)
+    public void testDispatcherDrainsAfterLoss() throws Exception {
+        File dir = folder.newFolder();
+        Configuration conf = new Configuration();
+        conf.set(Configuration.DISPATCHER_EVENT_QUEUE_TYPE,
+                Configuration.DISPATCHER_EVENT_QUEUE_TYPE_SPILLING);
+        conf.setInt(Configuration.DISPATCHER_EVENT_QUEUE_CAPACITY, 2);
+        conf.setInt(Configuration.DISPATCHER_SPILL_BATCH_SIZE, 2);
+        conf.set(Configuration.DISPATCHER_SPILL_DIR, dir.getPath());
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        dispatcher.setEventSerializer(FAILING_SERIALIZER);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Long> handled = new CopyOnWriteArrayList<>();
+        dispatcher.register(SpillType.class, (EventHandler<Event>) event -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handled.add(event.getTimestamp());
+        });
+        dispatcher.init(conf);
+        dispatcher.setDrainEventsOnStop();
+        dispatcher.start();
+        dispatcher.getEventHandler().handle(new TestEvent(0));
+        started.await();
+        // 1 and 2 in memory, then batches of 3 and 4, 5 and 6, and 7 and 8.
+        for (long i = 1; i < 10; i++) {
+            dispatcher.getEventHandler().handle(new TestEvent(i));
+        }
+        GenericTestUtils.waitFor(() -> fileCount(dir) == 3, 1, 5000);
+        release.countDown();
+        dispatcher.stop();
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 7L, 8L, 9L), handled);
+        assertEquals(0, dispatcher.getPendingEventCount(SpillType.DATA));
+    }
+
+    // A stalled handler makes the dispatcher spill instead of growing the heap.
+    @Test(timeout = 10000)
+    public void testDispatcherSpills() throws Exception {
+        File dir = folder.newFolder();
+        Configuration conf = new Configuration();
+        conf.set(Configuration.DISPATCHER_EVENT_QUEUE_TYPE,
+                Configuration.DISPATCHER_EVENT_QUEUE_TYPE_SPILLING);
+        conf.setInt(Configuration.DISPATCHER_EVENT_QUEUE_CAPACITY, 10);
+        conf.setInt(Configuration.DISPATCHER_SPILL_BATCH_SIZE, 10);
+        conf.set(Configuration.DISPATCHER_SPILL_DIR, dir.getPath());
+        conf.setBoolean(Configuration.DISPATCHER_QUEUE_TIME_TRACKING, true);
+        AsyncEventDispatcher dispatcher = new AsyncEventDispatcher();
+        dispatcher.setEventSerializer(SERIALIZER);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Long> handled = new CopyOnWriteArrayList<>();
+        dispatcher.register(SpillType.class, (EventHandler<Event>) event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handled.add(event.getTimestamp());
+        });
+        dispatcher.init(conf);
+        dispatcher.start();
+        try {
+            for (long i = 0; i < 100; i++) {
+                dispatcher.getEventHandler().handle(new TestEvent(i));
+            }
+            GenericTestUtils.waitFor(() -> fileCount(dir) >= 8, 1, 5000);
+            release.countDown();
+            GenericTestUtils.waitFor(() -> handled.size() == 100, 1, 5000);
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, (long) handled.get(i));
+            }
+            assertEquals(0, fileCount(dir));
+        } finally {
+            dispatcher.stop();
+        }
+    }
+}